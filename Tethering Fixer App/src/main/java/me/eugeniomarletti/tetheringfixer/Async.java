@@ -95,8 +95,8 @@ public final class Async
         runAsync(executor, false, callback, runnable, runnableExtras);
     }
 
-    private static <T> void returnCallback(final Callback<T> callback,
-                                           final T result, final boolean success, final Throwable error)
+    public static <T> void returnCallback(final Callback<T> callback,
+                                          final T result, final boolean success, final Throwable error)
     {
         if (callback != null)
         {
@@ -0,0 +1,125 @@
+/*
+ * The MIT License (MIT)
+ *
+ * Copyright (c) 2014 Eugenio Marletti
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in
+ * all copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN
+ * THE SOFTWARE.
+ */
+
+package me.eugeniomarletti.tetheringfixer;
+
+import java.util.ArrayList;
+import java.util.List;
+
+/**
+ * What the device can do, as far as the fix is concerned: found by a single shell script and kept as a bitmask, as it
+ * only changes along with the ROM or the kernel.
+ */
+public final class Capabilities
+{
+    public static final int UNKNOWN = -1;
+
+    // bumped whenever the probe changes, so that what an older one found isn't trusted
+    public static final int PROBE_VERSION = 2;
+
+    public static final int IPTABLES     = 1;
+    public static final int IPTABLES_NFT = 1 << 1; // iptables is just a front-end to nftables, legacy otherwise
+    public static final int IP6TABLES    = 1 << 2;
+    public static final int NFT          = 1 << 3;
+    public static final int IPSET        = 1 << 4;
+    public static final int WAIT         = 1 << 5; // iptables -w, waiting for the xtables lock
+    public static final int CHECK        = 1 << 6; // iptables -C
+    public static final int CONNTRACK    = 1 << 7;
+    public static final int TC           = 1 << 8;
+    public static final int WAIT_TIMEOUT = 1 << 9;  // iptables -w with a timeout and -W, its polling interval
+    public static final int RESTORE_WAIT = 1 << 10; // the same for iptables-restore
+
+    private static final String[] NAMES =
+            {"iptables", "iptables-nft", "ip6tables", "nft", "ipset", "wait", "check", "conntrack", "tc", "wait-timeout",
+             "restore-wait"};
+
+    // conditions on the exit code of a probe
+    private static final String FOUND       = "-ne 127";
+    private static final String OK          = "-eq 0";
+    private static final String NOT_INVALID = "-le 1"; // 1 is a rule not found, 2 an unknown option
+
+    private Capabilities() { }
+
+    /**
+     * @return a single command printing the bitmask, to be parsed with {@link #parse(String)}
+     */
+    public static String getProbeCommand()
+    {
+        return "m=0\n"
+               + "v=$(iptables -V 2>&1); [ $? " + FOUND + " ] && m=$((m|" + IPTABLES + "))\n"
+               + "case \"$v\" in *nf_tables*) m=$((m|" + IPTABLES_NFT + "));; esac\n"
+               + getProbe("ip6tables -V", FOUND, IP6TABLES)
+               + getProbe("nft --version", OK, NFT)
+               + getProbe("ipset version", FOUND, IPSET)
+               + getProbe("iptables -w -V", OK, WAIT)
+               + getProbe("iptables -w 1 -W 1000 -V", OK, WAIT_TIMEOUT)
+               // an empty input restores nothing
+               + getProbe("iptables-restore -w 1 -W 1000 --noflush </dev/null", OK, RESTORE_WAIT)
+               // the rule doesn't exist, so this only tells whether the option does
+               + getProbe("iptables -C OUTPUT -o tf_probe -j ACCEPT", NOT_INVALID, CHECK)
+               + getProbe("conntrack --version", FOUND, CONNTRACK)
+               + getProbe("tc -V", FOUND, TC)
+               + "echo $m";
+    }
+
+    private static String getProbe(String command, String condition, int capability)
+    {
+        return String.format("%s >/dev/null 2>&1; [ $? %s ] && m=$((m|%d))\n", command, condition, capability);
+    }
+
+    /**
+     * @param output of {@link #getProbeCommand()}
+     * @return the bitmask, {@link #UNKNOWN} if it can't be found
+     */
+    public static int parse(String output)
+    {
+        if (output == null) return UNKNOWN;
+        final String[] lines = output.trim().split("\n");
+        try
+        {
+            final int capabilities = Integer.parseInt(lines[lines.length - 1].trim());
+            return capabilities < 0 ? UNKNOWN : capabilities;
+        }
+        catch (NumberFormatException e)
+        {
+            return UNKNOWN;
+        }
+    }
+
+    public static boolean has(int capabilities, int capability)
+    {
+        return capabilities != UNKNOWN && (capabilities & capability) == capability;
+    }
+
+    /**
+     * @return the names of the capabilities found, for logging
+     */
+    public static String toString(int capabilities)
+    {
+        if (capabilities == UNKNOWN) return "unknown";
+        final List<String> names = new ArrayList<>(NAMES.length);
+        for (int i = 0; i < NAMES.length; i++) if (has(capabilities, 1 << i)) names.add(NAMES[i]);
+        return names.toString();
+    }
+}
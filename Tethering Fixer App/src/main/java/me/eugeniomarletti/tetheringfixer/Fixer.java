@@ -21,45 +21,302 @@
  * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN
  * THE SOFTWARE.
  */
-
 package me.eugeniomarletti.tetheringfixer;
 
 import android.content.Context;
+import android.content.SharedPreferences;
+import android.os.Build;
 import android.util.Log;
-import com.stericson.RootTools.RootTools;
 import com.stericson.RootTools.exceptions.RootDeniedException;
-import com.stericson.RootTools.execution.Shell;
 import me.eugeniomarletti.tetheringfixer.android.Application;
 import me.eugeniomarletti.tetheringfixer.android.PackageManager;
+import me.eugeniomarletti.tetheringfixer.command.BatchCommand;
 import me.eugeniomarletti.tetheringfixer.command.CommandException;
 import me.eugeniomarletti.tetheringfixer.command.CommandNotFoundException;
+import me.eugeniomarletti.tetheringfixer.command.CommandNotOkException;
 import me.eugeniomarletti.tetheringfixer.command.CommandResult;
-import me.eugeniomarletti.tetheringfixer.command.WaitCommand;
+import me.eugeniomarletti.tetheringfixer.command.CommandRunner;
+import me.eugeniomarletti.tetheringfixer.command.RootToolsShellBackend;
+import me.eugeniomarletti.tetheringfixer.command.ShellBackend;
+import me.eugeniomarletti.tetheringfixer.net.ArpTable;
+import me.eugeniomarletti.tetheringfixer.net.TetherSubnets;
+import me.eugeniomarletti.tetheringfixer.net.UpstreamInterfaces;
+import me.eugeniomarletti.tetheringfixer.netfilter.AccountingChain;
+import me.eugeniomarletti.tetheringfixer.netfilter.ClientUsage;
+import me.eugeniomarletti.tetheringfixer.netfilter.ConntrackFlush;
+import me.eugeniomarletti.tetheringfixer.netfilter.CounterCommand;
+import me.eugeniomarletti.tetheringfixer.netfilter.DesiredRule;
+import me.eugeniomarletti.tetheringfixer.netfilter.IpSet;
+import me.eugeniomarletti.tetheringfixer.netfilter.IptablesFamily;
+import me.eugeniomarletti.tetheringfixer.netfilter.IptablesTransaction;
+import me.eugeniomarletti.tetheringfixer.netfilter.NftBatch;
+import me.eugeniomarletti.tetheringfixer.netfilter.NftChain;
+import me.eugeniomarletti.tetheringfixer.netfilter.NftSnapshot;
+import me.eugeniomarletti.tetheringfixer.netfilter.NftTransaction;
+import me.eugeniomarletti.tetheringfixer.netfilter.PlacementAnalyzer;
+import me.eugeniomarletti.tetheringfixer.netfilter.Reconciler;
+import me.eugeniomarletti.tetheringfixer.netfilter.Rule;
+import me.eugeniomarletti.tetheringfixer.netfilter.SnapshotCommand;
+import me.eugeniomarletti.tetheringfixer.netfilter.TableSnapshot;
+import me.eugeniomarletti.tetheringfixer.netfilter.XtablesLock;
+import me.eugeniomarletti.tetheringfixer.tc.Qdisc;
+import me.eugeniomarletti.tetheringfixer.tc.TrafficControl;
+import me.eugeniomarletti.tetheringfixer.watch.LatencyStats;
+import org.json.JSONException;
 
 import java.io.IOException;
-import java.util.concurrent.ExecutorService;
-import java.util.concurrent.SynchronousQueue;
-import java.util.concurrent.ThreadPoolExecutor;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collection;
+import java.util.Collections;
+import java.util.HashSet;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Random;
+import java.util.Set;
 import java.util.concurrent.TimeUnit;
 import java.util.concurrent.TimeoutException;
 
 import static me.eugeniomarletti.tetheringfixer.Async.ResultRunnable;
+import static me.eugeniomarletti.tetheringfixer.netfilter.PlacementAnalyzer.Placement;
 
 public final class Fixer
 {
     // http://ipset.netfilter.org/iptables.man.html
 
-    private static final String IPTABLES_CMD      = "iptables";
-    private static final String TETHERING_FIX_CMD = IPTABLES_CMD +
-            " -t nat -%s natctrl_nat_POSTROUTING -s 192.168.0.0/16 -o rmnet0 -j MASQUERADE";
+    private static final String TETHERING_FIX_TABLE = "nat";
+    private static final String MSS_CLAMP_TABLE     = "mangle";
+    private static final String TTL_TABLE           = "mangle";
+    private static final String TETHERING_FIX_CMD   = "%s -t %s -%s %s %s";
+
+    // where the rules go when nftables is used instead: it's ours alone, in each family
+    private static final String   NFT_TABLE       = "tetherfix";
+    private static final NftChain NFT_POSTROUTING =
+            new NftChain("postrouting", NftChain.TYPE_NAT, NftChain.HOOK_POSTROUTING, NftChain.PRIORITY_SRCNAT);
+    private static final NftChain NFT_FORWARD     =
+            new NftChain("forward", NftChain.TYPE_FILTER, NftChain.HOOK_FORWARD, NftChain.PRIORITY_MANGLE);
 
-    private static final String IPTABLES_CMD_CHECK  = "C";
-    private static final String IPTABLES_CMD_APPEND = "A"; // tail of chain
-    private static final String IPTABLES_CMD_DELETE = "D";
+    // used when no cellular interface can be found
+    private static final String DEFAULT_UPSTREAM = "rmnet0";
+
+    private static final String IPTABLES_CMD_CHECK = "C";
 
     private static final int RETURN_CODE_CHECK_POSITIVE = 0;
 
-    private static volatile ExecutorService executor = null;
+    // how long an async command can take before we stop waiting for it
+    private static final long COMMAND_DEADLINE = 30000;
+
+    // an iptables command taking longer than this is logged, as it was most likely waiting for the lock
+    private static final long SLOW_XTABLES_COMMAND = 1000;
+
+    // how long the result of a check is shared with whoever asks right after
+    public static final long CHECK_RESULT_TTL = 2000;
+
+    private static final String  PREFERENCES                     = "fixer";
+    private static final String  PREFERENCE_CAPABILITIES         = "capabilities";
+    // the build they were probed on, as they only change along with it
+    private static final String  PREFERENCE_CAPABILITIES_BUILD   = "capabilities_build";
+    private static final String  PREFERENCE_STRATEGIES           = "strategies";
+    // the strategies whose rules may be in place, so that the ones no longer in use are only looked for when needed
+    private static final String  PREFERENCE_STRATEGIES_APPLIED   = "strategies_applied";
+    private static final String  PREFERENCE_MSS_CLAMPING         = "mss_clamping";
+    // whether the rules may be in place, so that they're only looked for when they might need removing
+    private static final String  PREFERENCE_MSS_CLAMPING_APPLIED = "mss_clamping_applied";
+    private static final boolean DEFAULT_MSS_CLAMPING            = false;
+    private static final String  PREFERENCE_LOW_LATENCY          = "low_latency";
+    private static final String  PREFERENCE_LOW_LATENCY_RATE     = "low_latency_rate";
+    // the interfaces whose root qdisc is ours, so that it can be taken off even by a later process
+    private static final String  PREFERENCE_LOW_LATENCY_APPLIED  = "low_latency_applied";
+    private static final boolean DEFAULT_LOW_LATENCY             = false;
+
+    // the ways of hiding the tethered traffic from the carrier, as flags: any combination of them can be in use
+    public static final  int STRATEGY_MASQUERADE = 1;      // the tethered traffic leaves with the upstream address
+    public static final  int STRATEGY_TTL        = 1 << 1; // the tethered packets leave with the TTL of our own
+    private static final int ALL_STRATEGIES      = STRATEGY_MASQUERADE | STRATEGY_TTL;
+    private static final int DEFAULT_STRATEGIES  = STRATEGY_MASQUERADE;
+
+    /**
+     * Where the rule goes for one address family, along with what we found out about its binaries.
+     */
+    private static final class Target
+    {
+        final IptablesFamily family;
+        final String         table;
+        final String         chain;
+        final String         match;
+        // used instead of the match while the tether set is usable, null if there's no set for this family
+        final String         setMatch;
+        final String         jump;
+        // the same rule for nftables, found by the iptables spec above in its comment
+        final NftChain       nftChain;
+        final String         nftRule;
+        // if false, any failure just disables the target instead of failing the whole fix
+        final boolean        required;
+
+        volatile boolean       enabled             = true;
+        // set to false as soon as the restore binary turns out to be missing
+        volatile boolean       transactionsEnabled = true;
+        // last dump of the table, dropped whenever we change it; set to false if the save binary is missing
+        volatile TableSnapshot snapshot            = null;
+        volatile boolean       snapshotsEnabled    = true;
+        // set to false as soon as ipset turns out to be missing or unsupported
+        volatile boolean       setEnabled          = true;
+        // last listing of our nftables table in this family, shared by all its targets and dropped the same way
+        volatile NftSnapshot   nftSnapshot         = null;
+
+        Target(IptablesFamily family, String table, String chain, String match, String setMatch, String jump,
+               NftChain nftChain, String nftRule, boolean required)
+        {
+            this.family = family;
+            this.table = table;
+            this.chain = chain;
+            this.match = match;
+            this.setMatch = setMatch;
+            this.jump = jump;
+            this.nftChain = nftChain;
+            this.nftRule = nftRule;
+            this.required = required;
+        }
+
+        boolean isSetUsed()
+        {
+            // nftables can't see the sets of ipset
+            return setMatch != null && setEnabled && !nftEnabled;
+        }
+
+        DesiredRule getDesiredRule(String upstream, int position)
+        {
+            return new DesiredRule(table, chain, String.format(isSetUsed() ? setMatch : match, upstream), jump,
+                                   position);
+        }
+
+        DesiredRule getDesiredRule(String upstream)
+        {
+            return getDesiredRule(upstream, DesiredRule.POSITION_APPEND);
+        }
+
+        /**
+         * @return the rule of the other mode, which must go if found; {@code null} if there's only one mode
+         */
+        String getReplacedRule(String upstream)
+        {
+            if (setMatch == null) return null;
+            return Rule.normalize(String.format(isSetUsed() ? match : setMatch, upstream) + " -j " + jump);
+        }
+
+        /**
+         * @param placements filled with where each rule goes and how deep in the chain that is
+         * @return the rules, each at the earliest position where it doesn't change the fate of any other packet
+         */
+        List<DesiredRule> getPlacedRules(TableSnapshot snapshot, Set<String> upstreams, List<Placement> placements)
+        {
+            final List<DesiredRule> rules = new ArrayList<>(upstreams.size());
+            final Set<String> ignored = new HashSet<>(upstreams.size() * 4 / 3 + 1);
+            for (String upstream : upstreams)
+            {
+                final String replaced = getReplacedRule(upstream);
+                if (replaced != null) ignored.add(replaced);
+            }
+            for (String upstream : upstreams)
+            {
+                final Placement placement = PlacementAnalyzer.analyze(snapshot, chain, getRule(upstream), ignored);
+                placements.add(placement);
+                rules.add(getDesiredRule(upstream, placement.getDesiredPosition()));
+            }
+            return rules;
+        }
+
+        String getRule(String upstream)
+        {
+            return getDesiredRule(upstream).spec;
+        }
+
+        String getNftRule(String upstream)
+        {
+            return String.format(nftRule, upstream);
+        }
+
+        String getRawCmd(String operation, String upstream)
+        {
+            return String.format(TETHERING_FIX_CMD, getBinary(family), table, operation, chain, getRule(upstream));
+        }
+    }
+
+    // all the tether subnets, so that a single rule covers them however many there are
+    private static final IpSet TETHER_SET = new IpSet("tetherfix_tether", IpSet.TYPE_HASH_NET);
+
+    private static final Target TARGET_IPV4 =
+            new Target(IptablesFamily.IPV4, TETHERING_FIX_TABLE, "natctrl_nat_POSTROUTING", "-s 192.168.0.0/16 -o %s",
+                       "-o %s " + TETHER_SET.getMatch(IpSet.DIRECTION_SOURCE), "MASQUERADE", NFT_POSTROUTING,
+                       "oifname \"%s\" ip saddr 192.168.0.0/16 masquerade", true);
+    // netd doesn't manage any IPv6 NAT, so there's no chain of its own; the tethered clients have addresses of
+    // their own, so there's no source to match either. Needs a kernel with the IPv6 nat table (3.7+).
+    private static final Target TARGET_IPV6 =
+            new Target(IptablesFamily.IPV6, TETHERING_FIX_TABLE, "POSTROUTING", "-o %s", null, "MASQUERADE",
+                       NFT_POSTROUTING, "oifname \"%s\" masquerade", false);
+
+    private static final Target[] TARGETS = {TARGET_IPV4, TARGET_IPV6};
+
+    // only SYNs carry the MSS option, and FORWARD only sees tethered traffic, in both directions: a single rule covers
+    // the segments sent and received by the clients on every upstream
+    private static final String MSS_CLAMP_MATCH = "-p tcp -m tcp --tcp-flags SYN,RST SYN";
+    private static final String MSS_CLAMP_JUMP  = "TCPMSS --clamp-mss-to-pmtu";
+    private static final String MSS_CLAMP_NFT   = "tcp flags & (syn | rst) == syn tcp option maxseg size set rt mtu";
+
+    private static final Target TARGET_MSS_IPV4 =
+            new Target(IptablesFamily.IPV4, MSS_CLAMP_TABLE, "FORWARD", MSS_CLAMP_MATCH, null, MSS_CLAMP_JUMP,
+                       NFT_FORWARD, MSS_CLAMP_NFT, true);
+    private static final Target TARGET_MSS_IPV6 =
+            new Target(IptablesFamily.IPV6, MSS_CLAMP_TABLE, "FORWARD", MSS_CLAMP_MATCH, null, MSS_CLAMP_JUMP,
+                       NFT_FORWARD, MSS_CLAMP_NFT, false);
+
+    private static final Target[] MSS_TARGETS = {TARGET_MSS_IPV4, TARGET_MSS_IPV6};
+
+    // the forwarded packets already had their TTL decremented when they get to FORWARD, which only sees tethered
+    // traffic: it goes back to what a packet sent by the phone itself has
+    private static final String TTL_MATCH   = "-o %s";
+    private static final String TTL_JUMP    = "TTL --ttl-set 64";
+    private static final String HL_JUMP     = "HL --hl-set 64";
+
+    private static final Target TARGET_TTL_IPV4 =
+            new Target(IptablesFamily.IPV4, TTL_TABLE, "FORWARD", TTL_MATCH, null, TTL_JUMP, NFT_FORWARD,
+                       "oifname \"%s\" ip ttl set 64", true);
+    private static final Target TARGET_TTL_IPV6 =
+            new Target(IptablesFamily.IPV6, TTL_TABLE, "FORWARD", TTL_MATCH, null, HL_JUMP, NFT_FORWARD,
+                       "oifname \"%s\" ip6 hoplimit set 64", false);
+
+    private static final Target[] TTL_TARGETS = {TARGET_TTL_IPV4, TARGET_TTL_IPV6};
+
+    private static final Target[] ALL_TARGETS =
+            {TARGET_IPV4, TARGET_IPV6, TARGET_MSS_IPV4, TARGET_MSS_IPV6, TARGET_TTL_IPV4, TARGET_TTL_IPV6};
+
+    private static final SingleFlight<Boolean> FLIGHT_CHECK_ROOT_AVAILABLE   = new SingleFlight<>(CHECK_RESULT_TTL);
+    private static final SingleFlight<Boolean> FLIGHT_CHECK_IPTABLES_EXISTS = new SingleFlight<>(CHECK_RESULT_TTL);
+    private static final SingleFlight<Boolean> FLIGHT_CHECK_FIX             = new SingleFlight<>(CHECK_RESULT_TTL);
+
+    private static volatile boolean flushFlowsEnabled = true;
+    private static volatile boolean procFlushEnabled  = false;
+
+    // set when nft is found and iptables is either missing or just a front-end to it
+    private static volatile boolean nftEnabled   = false;
+    private static volatile int     capabilities = Capabilities.UNKNOWN;
+
+    // guards the low latency mode
+    private static final Object     lowLatencyLock = new Object();
+    private static volatile boolean cakeSupported  = true;
+
+    // where the IPv4 rules were placed by the last fix that could read the table
+    private static volatile List<Placement> placements = Collections.emptyList();
+
+    private static final Random       random      = new Random();
+    private static final LatencyStats lockWaits   = new LatencyStats("xtables lock wait");
+    private static final LatencyStats xtablesRuns = new LatencyStats("xtables run");
+
+    private static final CommandRunner runner = new CommandRunner(new RootToolsShellBackend(60000, 3));
+
+    // lives as long as the process, its threads just park when there's nothing to do
+    private static final ShellExecutor executor = new ShellExecutor("Fixer", 2, 32);
 
     private static final String TAG = "Fixer";
 
@@ -76,6 +333,9 @@ public final class Fixer
     public static void shutdown()
     {
         log("Shutting down");
+        invalidateSnapshot();
+        FLIGHT_CHECK_ROOT_AVAILABLE.forget();
+        FLIGHT_CHECK_IPTABLES_EXISTS.forget();
         closeAllShellsAsync(new Async.Callback<Void>()
         {
             @Override
@@ -85,59 +345,504 @@ public final class Fixer
                 else log("Error closing shells.", error);
             }
         });
-        if (executor != null && !executor.isShutdown())
+        log(executor.toString());
+    }
+
+    public static ShellExecutor getExecutor()
+    {
+        return executor;
+    }
+
+    /**
+     * @return the cellular interfaces currently active, discovering them again every time
+     */
+    public static Set<String> getUpstreams()
+    {
+        if (UpstreamInterfaces.refresh()) log("Upstream interfaces changed: " + UpstreamInterfaces.get());
+        final Set<String> upstreams = UpstreamInterfaces.get();
+        return upstreams.isEmpty() ? Collections.singleton(DEFAULT_UPSTREAM) : upstreams;
+    }
+
+    public static ShellBackend getShellBackend()
+    {
+        return runner.getShell();
+    }
+
+    /**
+     * Replaces the backend used to run all commands, e.g. with a {@link me.eugeniomarletti.tetheringfixer.command
+     * .ProcessShellBackend} to run off-device. The previous one is not closed.
+     */
+    public static void setShellBackend(ShellBackend shell)
+    {
+        runner.setShell(shell);
+        invalidateSnapshot();
+    }
+
+    /**
+     * Rethrows the error if the target is required, otherwise just stops handling it.
+     */
+    private static void fail(Target target, String reason, CommandException error) throws CommandException
+    {
+        if (target.required) throw error;
+        disable(target, reason, error);
+    }
+
+    private static void disable(Target target, String reason, CommandException error)
+    {
+        log(String.format("%s, disabling %s.", reason, target.family), error);
+        target.enabled = false;
+        target.snapshot = null;
+    }
+
+    /**
+     * @return the targets still handled, in order
+     */
+    private static List<Target> getEnabledTargets(Target[] group)
+    {
+        final List<Target> targets = new ArrayList<>(group.length);
+        for (Target target : group) if (target.enabled) targets.add(target);
+        return targets;
+    }
+
+    /**
+     * @return the targets of the strategies, all the families of each one in a row
+     */
+    private static Target[] getTargets(int strategies)
+    {
+        final List<Target> targets = new ArrayList<>(ALL_TARGETS.length);
+        if ((strategies & STRATEGY_MASQUERADE) != 0) Collections.addAll(targets, TARGETS);
+        if ((strategies & STRATEGY_TTL) != 0) Collections.addAll(targets, TTL_TARGETS);
+        return targets.toArray(new Target[targets.size()]);
+    }
+
+    public static boolean isIpv6Enabled()
+    {
+        return TARGET_IPV6.enabled;
+    }
+
+    /**
+     * Dumps the tables of all the targets that need it with a single command, parsing them while they're being read.
+     * Where the save binary is missing the rules are checked one by one, unless iptables is too old for {@code -C}:
+     * then the table is listed by iptables itself.
+     */
+    private static void readSnapshots(Target[] group) throws IOException, CommandException
+    {
+        if (nftEnabled)
+        {
+            readNftSnapshots(group);
+            return;
+        }
+        final boolean check = capabilities == Capabilities.UNKNOWN
+                              || Capabilities.has(capabilities, Capabilities.CHECK);
+        final List<Target> targets = new ArrayList<>(group.length);
+        for (Target target : group)
+            if (target.enabled && (target.snapshotsEnabled || !check) && target.snapshot == null) targets.add(target);
+        if (targets.isEmpty()) return;
+
+        final String[] binaries = new String[targets.size()];
+        final String[] tables = new String[targets.size()];
+        final boolean[] listed = new boolean[targets.size()];
+        for (int i = 0; i < binaries.length; i++)
         {
-            executor.shutdown();
-            executor = null;
+            final Target target = targets.get(i);
+            listed[i] = !target.snapshotsEnabled;
+            binaries[i] = listed[i] ? getBinary(target.family) : target.family.saveBinary;
+            tables[i] = target.table;
+        }
+        final SnapshotCommand cmd = new SnapshotCommand(binaries, tables, listed);
+        final CommandResult[] results = runner.runAll(cmd);
+
+        for (int i = 0; i < results.length; i++)
+        {
+            final Target target = targets.get(i);
+            final CommandResult result = results[i];
+            if (result.exitcode == CommandNotFoundException.RETURN_CODE_COMMAND_NOT_FOUND && !listed[i])
+            {
+                log(String.format("Save binary not found, disabling %s snapshots.", target.family));
+                target.snapshotsEnabled = false;
+            }
+            else if (result.exitcode != CommandNotOkException.RETURN_CODE_COMMAND_OK)
+                fail(target, "Can't read the table", new CommandNotOkException(result));
+            else
+            {
+                final TableSnapshot snapshot = cmd.getSnapshot(i);
+                log(String.format("Read %s snapshot of table '%s': %d lines, %d rules", target.family,
+                                  snapshot.table, cmd.getParser(i).getLinesRead(), snapshot.size()));
+                target.snapshot = snapshot;
+            }
         }
     }
 
-    private static String getTetheringCheckRawCmd()
+    /**
+     * Lists our table in the families of all the targets that need it with a single command. A table that doesn't
+     * exist yet is just empty.
+     */
+    private static void readNftSnapshots(Target[] group) throws IOException, CommandException
     {
-        return String.format(TETHERING_FIX_CMD, IPTABLES_CMD_CHECK);
+        final List<IptablesFamily> families = new ArrayList<>(group.length);
+        for (Target target : group)
+            if (target.enabled && target.nftSnapshot == null && !families.contains(target.family))
+                families.add(target.family);
+        if (families.isEmpty()) return;
+
+        final String[] commands = new String[families.size()];
+        for (int i = 0; i < commands.length; i++)
+            commands[i] = NftSnapshot.getListCommand(families.get(i).nftFamily, NFT_TABLE);
+        final CommandResult[] results = runner.runAll(new BatchCommand(commands));
+
+        for (int i = 0; i < results.length; i++)
+        {
+            final IptablesFamily family = families.get(i);
+            final CommandResult result = results[i];
+            CommandNotFoundException.throwIfNotFound(result);
+            final NftSnapshot snapshot;
+            if (result.exitcode == CommandNotOkException.RETURN_CODE_COMMAND_OK)
+            {
+                try
+                {
+                    snapshot = NftSnapshot.parse(family.nftFamily, NFT_TABLE, result.output);
+                }
+                catch (JSONException e)
+                {
+                    throw new IOException(String.format("Can't parse the %s nftables listing.", family), e);
+                }
+            }
+            else if (NftSnapshot.isNoSuchTable(result.output))
+                snapshot = NftSnapshot.empty(family.nftFamily, NFT_TABLE);
+            else
+            {
+                final CommandNotOkException error = new CommandNotOkException(result);
+                for (Target target : group) if (target.family == family) fail(target, "Can't list the table", error);
+                continue;
+            }
+            log(String.format("Read %s nftables snapshot: %d rules", family, snapshot.size()));
+            for (Target target : ALL_TARGETS) if (target.family == family) target.nftSnapshot = snapshot;
+        }
     }
 
-    private static String getTetheringAppendRawCmd()
+    /**
+     * @return the cached snapshot of the IPv4 table, reading it only if it has been invalidated
+     */
+    public static TableSnapshot getSnapshot() throws IOException, CommandException
     {
-        return String.format(TETHERING_FIX_CMD, IPTABLES_CMD_APPEND);
+        readSnapshots(TARGETS);
+        final TableSnapshot snapshot = TARGET_IPV4.snapshot;
+        if (snapshot == null) throw new IllegalStateException("Snapshots are disabled.");
+        return snapshot;
     }
 
-    private static String getTetheringDeleteRawCmd()
+    /**
+     * Must be called whenever the tables might have been changed by someone else.
+     */
+    public static void invalidateSnapshot()
     {
-        return String.format(TETHERING_FIX_CMD, IPTABLES_CMD_DELETE);
+        for (Target target : ALL_TARGETS)
+        {
+            target.snapshot = null;
+            target.nftSnapshot = null;
+        }
+        FLIGHT_CHECK_FIX.forget();
     }
 
-    private static CommandResult runCommand(String command) throws IOException, CommandException
+    public static boolean isTransactionsEnabled()
     {
-        final WaitCommand cmd = new WaitCommand(command);
-        final Shell shell = Shell.getOpenShell();
-        if (shell == null) throw new NullPointerException("Must start a shell before adding a command.");
-        shell.add(cmd);
-        final CommandResult result = cmd.waitForFinish();
+        return TARGET_IPV4.transactionsEnabled;
+    }
 
-        CommandNotFoundException.throwIfNotFound(result);
-        if (result.terminated) throw new CommandException(result);
+    public static void setTransactionsEnabled(boolean transactionsEnabled)
+    {
+        for (Target target : ALL_TARGETS) target.transactionsEnabled = transactionsEnabled;
+    }
 
-        return result;
+    /**
+     * @return how deep the IPv4 rules are in their chain, before and after the last fix; empty if the table couldn't
+     *         be read
+     */
+    public static List<Placement> getPlacements()
+    {
+        return placements;
     }
 
-    private static <T> void runAsync(Async.Callback<T> callback, ResultRunnable<T> runnable, Object... extras)
+    /**
+     * @return whether the rules go through nftables, as decided by the last check of the binaries
+     */
+    public static boolean isNftablesEnabled()
     {
-        if (executor == null || executor.isShutdown())
+        return nftEnabled;
+    }
+
+    public static boolean isTetherSetEnabled()
+    {
+        return TARGET_IPV4.setEnabled;
+    }
+
+    /**
+     * Chooses between matching the tether subnets with an ipset or with the plain {@code -s} match. Whichever rule
+     * isn't wanted is removed by the next fix.
+     */
+    public static void setTetherSetEnabled(boolean setEnabled)
+    {
+        TARGET_IPV4.setEnabled = setEnabled;
+        FLIGHT_CHECK_FIX.forget();
+    }
+
+    /**
+     * @return the {@code STRATEGY_*} flags the fix is made of
+     */
+    public static int getStrategies()
+    {
+        return getPreferences().getInt(PREFERENCE_STRATEGIES, DEFAULT_STRATEGIES);
+    }
+
+    /**
+     * Chooses the strategies the fix is made of. The rules of the ones no longer chosen are removed by the next fix.
+     *
+     * @param strategies any combination of the {@code STRATEGY_*} flags, but at least one
+     */
+    public static void setStrategies(int strategies)
+    {
+        if (strategies == 0 || (strategies & ~ALL_STRATEGIES) != 0)
+            throw new IllegalArgumentException("Invalid strategies: " + strategies);
+        getPreferences().edit().putInt(PREFERENCE_STRATEGIES, strategies).apply();
+        FLIGHT_CHECK_FIX.forget();
+    }
+
+    /**
+     * Creates the tether set if needed and brings its members in line with the tether subnets, without touching any
+     * chain. If ipset is missing or not supported by the kernel it falls back to the plain rule, for good.
+     */
+    private static void syncTetherSet() throws IOException, CommandException
+    {
+        if (!TARGET_IPV4.setEnabled || nftEnabled) return;
+        final CommandResult[] results =
+                runner.runAll(new BatchCommand(TETHER_SET.getCreateCommand(), TETHER_SET.getSaveCommand()));
+        if (!isTetherSetOk(results[0]) || !isTetherSetOk(results[1])) return;
+
+        final Set<String> members = TETHER_SET.parseMembers(results[1].output);
+        final String update = TETHER_SET.getUpdateCommand(members, TetherSubnets.get(null));
+        if (update == null) return;
+        log(String.format("Updating %s: %s", TETHER_SET, update));
+        isTetherSetOk(runner.runAll(new BatchCommand(update))[0]);
+    }
+
+    /**
+     * Only reads the tether set: whether its members are already the tether subnets, so that {@link #syncTetherSet()}
+     * has nothing to do. A set that can't be read isn't in sync, it's up to the next fix to create it or fall back.
+     */
+    private static boolean isTetherSetInSync() throws IOException, CommandException
+    {
+        if (!TARGET_IPV4.setEnabled || nftEnabled) return true;
+        final CommandResult result = runner.runAll(new BatchCommand(TETHER_SET.getSaveCommand()))[0];
+        if (result.exitcode != CommandNotOkException.RETURN_CODE_COMMAND_OK) return false;
+        final Set<String> members = TETHER_SET.parseMembers(result.output);
+        if (TETHER_SET.getUpdateCommand(members, TetherSubnets.get(null)) == null) return true;
+        log(String.format("%s is out of date: %s", TETHER_SET, members));
+        return false;
+    }
+
+    private static boolean isTetherSetOk(CommandResult result)
+    {
+        if (result.exitcode == CommandNotOkException.RETURN_CODE_COMMAND_OK) return true;
+        log(String.format("ipset failed with exit code %d, falling back to the plain rule.", result.exitcode));
+        setTetherSetEnabled(false);
+        return false;
+    }
+
+    /**
+     * Applies the transactions of all the targets with a single script, so that no family waits for the other.
+     * Each one goes through {@code iptables-restore} where available, falling back to separate {@code iptables}
+     * commands (batched, but not atomic) where it's not.
+     */
+    private static void commit(Map<Target, IptablesTransaction> transactions) throws IOException, CommandException
+    {
+        final List<String> commands = new ArrayList<>();
+        final List<Target> owners = new ArrayList<>();
+        final List<IptablesTransaction> restores = new ArrayList<>(); // null for plain commands
+        for (Map.Entry<Target, IptablesTransaction> entry : transactions.entrySet())
+        {
+            final Target target = entry.getKey();
+            final IptablesTransaction transaction = entry.getValue();
+            if (transaction.isEmpty()) continue;
+            if (target.transactionsEnabled)
+            {
+                commands.add(transaction.getRestoreCommand(getRestoreBinary(target.family)));
+                owners.add(target);
+                restores.add(transaction);
+            }
+            else for (String command : transaction.getCommands(getBinary(target.family)))
+            {
+                commands.add(command);
+                owners.add(target);
+                restores.add(null);
+            }
+        }
+        if (commands.isEmpty()) return;
+        invalidateSnapshot();
+
+        // a transaction is the whole change of its table, the plain commands only make sense in their order
+        final boolean[] standalone = new boolean[commands.size()];
+        for (int i = 0; i < standalone.length; i++) standalone[i] = restores.get(i) != null;
+        final CommandResult[] results = runAllLocked(commands.toArray(new String[commands.size()]), standalone);
+
+        final Map<Target, IptablesTransaction> retry = new LinkedHashMap<>();
+        for (int i = 0; i < results.length; i++)
         {
-            executor = new ThreadPoolExecutor(0, 2,
-                                              65L, TimeUnit.SECONDS,
-                                              new SynchronousQueue<Runnable>());
-            log("Created new executor");
+            final Target target = owners.get(i);
+            final CommandResult result = results[i];
+            final boolean notFound = result.exitcode == CommandNotFoundException.RETURN_CODE_COMMAND_NOT_FOUND;
+            if (restores.get(i) == null)
+            {
+                if (notFound) fail(target, "Binary not found", new CommandNotFoundException(result));
+            }
+            else if (notFound)
+            {
+                log(String.format("Restore binary not found, disabling %s transactions.", target.family));
+                target.transactionsEnabled = false;
+                retry.put(target, restores.get(i));
+            }
+            else if (result.exitcode != CommandNotOkException.RETURN_CODE_COMMAND_OK)
+                fail(target, "Transaction failed", new CommandNotOkException(result));
         }
-        Async.runAsync(executor, false, callback, runnable, extras);
+        if (!retry.isEmpty()) commit(retry);
+    }
+
+    /**
+     * @return the binary, followed by the options telling it to wait for the xtables lock if it knows them
+     */
+    private static String getBinary(IptablesFamily family)
+    {
+        if (Capabilities.has(capabilities, Capabilities.WAIT_TIMEOUT))
+            return family.binary + XtablesLock.getWaitOptions(true);
+        if (Capabilities.has(capabilities, Capabilities.WAIT)) return family.binary + XtablesLock.getWaitOptions(false);
+        return family.binary;
+    }
+
+    private static String getRestoreBinary(IptablesFamily family)
+    {
+        if (!Capabilities.has(capabilities, Capabilities.RESTORE_WAIT)) return family.restoreBinary;
+        return family.restoreBinary + XtablesLock.getWaitOptions(true);
+    }
+
+    /**
+     * Runs the iptables commands in a single batch, then runs again those that failed because someone else held the
+     * xtables lock, after a jittered backoff, until they get it or run out of attempts.
+     * Only the commands that don't depend on the ones around them are ever run again, since by then those after them
+     * have already run: the others are left to wait for the lock by themselves, through the options of the binary.
+     * For each command it records how long it waited through the attempts, and how long its last run took: where the
+     * binary waits for the lock by itself, that's where the wait ends up.
+     *
+     * @param standalone for each command, whether it can be run again on its own
+     */
+    private static CommandResult[] runAllLocked(String[] commands, boolean[] standalone)
+            throws IOException, CommandException
+    {
+        final CommandResult[] results = new CommandResult[commands.length];
+        final long start = System.nanoTime();
+        List<Integer> pending = new ArrayList<>(commands.length);
+        for (int i = 0; i < commands.length; i++) pending.add(i);
+        for (int attempt = 0; ; attempt++)
+        {
+            final String[] batch = new String[pending.size()];
+            for (int i = 0; i < batch.length; i++) batch[i] = commands[pending.get(i)];
+            final BatchCommand cmd = new BatchCommand(batch);
+            cmd.setTimeout(XtablesLock.getBatchTimeout(cmd.getTimeout(), batch.length));
+            final long attemptStart = System.nanoTime();
+            final CommandResult[] attemptResults = runner.runAll(cmd);
+            final boolean lastAttempt = attempt + 1 >= XtablesLock.MAX_ATTEMPTS;
+
+            final List<Integer> locked = new ArrayList<>(batch.length);
+            long previous = attemptStart;
+            for (int i = 0; i < batch.length; i++)
+            {
+                final int index = pending.get(i);
+                results[index] = attemptResults[i];
+                final long completion = cmd.getCompletionTime(i);
+                final long run = completion == 0 ? 0 : completion - previous;
+                if (completion != 0) previous = completion;
+                if (attemptResults[i].exitcode == XtablesLock.RETURN_CODE_LOCK_HELD && standalone[index] &&
+                    !lastAttempt) locked.add(index);
+                else recordLockWait(commands[index], attempt + 1, attemptStart - start, run);
+            }
+            if (locked.isEmpty()) return results;
+
+            try
+            {
+                Thread.sleep(XtablesLock.getBackoff(attempt, random));
+            }
+            catch (InterruptedException e)
+            {
+                Thread.currentThread().interrupt();
+                return results; // the ones still locked just fail
+            }
+            pending = locked;
+        }
+    }
+
+    private static void recordLockWait(String command, int attempts, long waitNanos, long runNanos)
+    {
+        final long wait = TimeUnit.NANOSECONDS.toMillis(waitNanos);
+        final long run = TimeUnit.NANOSECONDS.toMillis(runNanos);
+        synchronized (lockWaits)
+        {
+            lockWaits.record(wait);
+            xtablesRuns.record(run);
+        }
+        if (attempts > 1 || run >= SLOW_XTABLES_COMMAND)
+            log(String.format("Waited %dms for the xtables lock over %d attempts, then ran in %dms: %s", wait,
+                              attempts, run, command.split("\n", 2)[0]));
+    }
+
+    /**
+     * @return how long each iptables command waited for the xtables lock through our retries; synchronize on it to
+     *         read it
+     */
+    public static LatencyStats getLockWaitStats()
+    {
+        return lockWaits;
+    }
+
+    /**
+     * @return how long each iptables command took to run, including any wait for the xtables lock done by the binary
+     *         itself; synchronize on {@link #getLockWaitStats()} to read it
+     */
+    public static LatencyStats getXtablesRunStats()
+    {
+        return xtablesRuns;
+    }
+
+    private static <T> void runAsync(int priority,
+                                     Async.Callback<T> callback, ResultRunnable<T> runnable, Object... extras)
+    {
+        Async.runAsync(executor.withPriority(priority), false, callback, runnable, extras);
+    }
+
+    private static <T> void runAsync(Async.Callback<T> callback, ResultRunnable<T> runnable, Object... extras)
+    {
+        runAsync(ShellExecutor.PRIORITY_NORMAL, callback, runnable, extras);
+    }
+
+    /**
+     * Like {@link #runAsync(Async.Callback, ResultRunnable, Object...)}, but joins the execution already in flight
+     * (or recently finished) if there is one.
+     */
+    private static <T> void runAsyncShared(SingleFlight<T> flight,
+                                           Async.Callback<T> callback, final ResultRunnable<T> runnable)
+    {
+        flight.execute(callback, new SingleFlight.Operation<T>()
+        {
+            @Override
+            public void start(Async.Callback<T> callback)
+            {
+                runAsync(callback, runnable);
+            }
+        });
     }
 
     /* *** CHECK ROOT AVAILABLE *** */
 
     public static void checkRootAvailableAsync(Async.Callback<Boolean> callback)
     {
-        runAsync(callback, ACTION_CHECK_ROOT_AVAILABLE);
+        runAsyncShared(FLIGHT_CHECK_ROOT_AVAILABLE, callback, ACTION_CHECK_ROOT_AVAILABLE);
     }
 
     private static final ResultRunnable<Boolean> ACTION_CHECK_ROOT_AVAILABLE = new ResultRunnable<Boolean>()
@@ -151,7 +856,7 @@ public final class Fixer
 
     public static boolean checkRootAvailable()
     {
-        return RootTools.isRootAvailable();
+        return runner.getShell().isAvailable();
     }
 
     /* *** START ROOT SHELL *** */
@@ -173,14 +878,14 @@ public final class Fixer
 
     public static void startRootShell() throws TimeoutException, RootDeniedException, IOException
     {
-        Shell.startRootShell(60000, 3);
+        runner.getShell().start();
     }
 
     /* *** CLOSE ALL SHELLS *** */
 
     public static void closeAllShellsAsync(Async.Callback<Void> callback)
     {
-        runAsync(callback, ACTION_CLOSE_ALL_SHELLS);
+        runAsync(ShellExecutor.PRIORITY_LOW, callback, ACTION_CLOSE_ALL_SHELLS);
     }
 
     private static final ResultRunnable<Void> ACTION_CLOSE_ALL_SHELLS = new ResultRunnable<Void>()
@@ -195,36 +900,180 @@ public final class Fixer
 
     public static void closeAllShells() throws IOException
     {
-        Shell.closeAll();
+        runner.getShell().close();
     }
 
     /* *** CHECK IPTABLES EXISTS *** */
 
     public static void checkIptablesExistsAsync(Async.Callback<Boolean> callback)
     {
-        runAsync(callback, ACTION_CHECK_IPTABLES_EXISTS);
+        FLIGHT_CHECK_IPTABLES_EXISTS.execute(callback, OPERATION_CHECK_IPTABLES_EXISTS);
     }
 
-    private static final ResultRunnable<Boolean> ACTION_CHECK_IPTABLES_EXISTS = new ResultRunnable<Boolean>()
+    private static final SingleFlight.Operation<Boolean> OPERATION_CHECK_IPTABLES_EXISTS =
+            new SingleFlight.Operation<Boolean>()
+            {
+                @Override
+                public void start(final Async.Callback<Boolean> callback)
+                {
+                    final int cached = getCachedCapabilities();
+                    if (cached != Capabilities.UNKNOWN)
+                    {
+                        returnCapabilities(callback, cached);
+                        return;
+                    }
+                    // doesn't need an executor thread, it just waits for the shell
+                    final BatchCommand cmd = new BatchCommand(Capabilities.getProbeCommand());
+                    runner.runAsync(cmd, COMMAND_DEADLINE, new Async.Callback<CommandResult>()
+                    {
+                        @Override
+                        public void callback(CommandResult result, boolean success, Throwable error)
+                        {
+                            if (!success)
+                            {
+                                Async.returnCallback(callback, null, false, error);
+                                return;
+                            }
+                            final int capabilities;
+                            try
+                            {
+                                capabilities = parseCapabilities(cmd.getResults()[0]);
+                            }
+                            catch (CommandException e)
+                            {
+                                Async.returnCallback(callback, null, false, e);
+                                return;
+                            }
+                            returnCapabilities(callback, capabilities);
+                        }
+                    });
+                }
+            };
+
+    private static void returnCapabilities(Async.Callback<Boolean> callback, int capabilities)
     {
-        @Override
-        public Boolean run(Object... extras) throws Throwable
+        final boolean found;
+        try
         {
-            return checkIptablesExists();
+            found = setCapabilities(capabilities);
         }
-    };
+        catch (CommandException e)
+        {
+            Async.returnCallback(callback, null, false, e);
+            return;
+        }
+        Async.returnCallback(callback, found, true, null);
+    }
 
+    /**
+     * Probes the device only the first time, or after the ROM or the kernel have changed.
+     */
     public static boolean checkIptablesExists() throws IOException, CommandException
     {
-        final CommandResult result = runCommand(IPTABLES_CMD);
-        return result != null && result.exitcode != 127; // && result.exitcode == 2
+        int capabilities = getCachedCapabilities();
+        if (capabilities == Capabilities.UNKNOWN)
+            capabilities = parseCapabilities(runner.runAll(new BatchCommand(Capabilities.getProbeCommand()))[0]);
+        return setCapabilities(capabilities);
+    }
+
+    /**
+     * @return changes along with the ROM, the kernel or the probe
+     */
+    private static String getBuildFingerprint()
+    {
+        return String.format("%s %s #%d", Build.FINGERPRINT, System.getProperty("os.version"),
+                             Capabilities.PROBE_VERSION);
+    }
+
+    /**
+     * @return the capabilities found by the last probe, {@link Capabilities#UNKNOWN} if it was on another build
+     */
+    private static int getCachedCapabilities()
+    {
+        final SharedPreferences preferences = getPreferences();
+        if (!getBuildFingerprint().equals(preferences.getString(PREFERENCE_CAPABILITIES_BUILD, null)))
+            return Capabilities.UNKNOWN;
+        return preferences.getInt(PREFERENCE_CAPABILITIES, Capabilities.UNKNOWN);
+    }
+
+    /**
+     * Remembers the result of the probe along with the build it ran on.
+     */
+    private static int parseCapabilities(CommandResult result) throws CommandNotOkException
+    {
+        CommandNotOkException.throwIfNotOk(result);
+        final int capabilities = Capabilities.parse(result.output);
+        if (capabilities == Capabilities.UNKNOWN) throw new CommandNotOkException(result);
+        log("Probed capabilities: " + Capabilities.toString(capabilities));
+        getPreferences().edit()
+                        .putInt(PREFERENCE_CAPABILITIES, capabilities)
+                        .putString(PREFERENCE_CAPABILITIES_BUILD, getBuildFingerprint())
+                        .apply();
+        return capabilities;
+    }
+
+    /**
+     * Forgets the capabilities, so that the device is probed again by the next check.
+     */
+    public static void invalidateCapabilities()
+    {
+        getPreferences().edit().remove(PREFERENCE_CAPABILITIES).apply();
+        FLIGHT_CHECK_IPTABLES_EXISTS.forget();
+    }
+
+    /**
+     * @return the capabilities in use, {@link Capabilities#UNKNOWN} until the first check
+     */
+    public static int getCapabilities()
+    {
+        return capabilities;
+    }
+
+    /**
+     * Only IPv4 is required, the other families are just enabled depending on whether they're found.
+     * Where nft is found and iptables is either missing or just a front-end to nftables, all the families go through
+     * nft instead.
+     *
+     * @throws CommandNotFoundException if neither IPv4 nor nft are found
+     */
+    private static boolean setCapabilities(int capabilities) throws CommandNotFoundException
+    {
+        Fixer.capabilities = capabilities;
+        final boolean iptables = Capabilities.has(capabilities, Capabilities.IPTABLES);
+        final boolean nftEnabled = Capabilities.has(capabilities, Capabilities.NFT)
+                                   && (!iptables || Capabilities.has(capabilities, Capabilities.IPTABLES_NFT));
+        if (nftEnabled != Fixer.nftEnabled)
+        {
+            log(nftEnabled ? "nftables enabled" : "nftables disabled");
+            Fixer.nftEnabled = nftEnabled;
+            invalidateSnapshot();
+        }
+        if (!Capabilities.has(capabilities, Capabilities.IPSET) && TARGET_IPV4.setEnabled)
+        {
+            log("ipset not found, falling back to the plain rule.");
+            setTetherSetEnabled(false);
+        }
+        if (nftEnabled)
+        {
+            // nft handles them all, whether each one works is only found out when listing or committing
+            for (Target target : ALL_TARGETS) target.enabled = true;
+            return true;
+        }
+
+        final boolean ipv6 = Capabilities.has(capabilities, Capabilities.IP6TABLES);
+        if (ipv6 != TARGET_IPV6.enabled) log(TARGET_IPV6.family + (ipv6 ? " enabled" : " disabled"));
+        for (Target target : ALL_TARGETS) if (target.family == IptablesFamily.IPV6) target.enabled = ipv6;
+        if (iptables) return true;
+        // same as a single command
+        throw new CommandNotFoundException(
+                new CommandResult(0, CommandNotFoundException.RETURN_CODE_COMMAND_NOT_FOUND, false, "Not found."));
     }
 
     /* *** CHECK FIX *** */
 
     public static void checkFixAsync(Async.Callback<Boolean> callback)
     {
-        runAsync(callback, ACTION_CHECK_FIX);
+        runAsyncShared(FLIGHT_CHECK_FIX, callback, ACTION_CHECK_FIX);
     }
 
     private static final ResultRunnable<Boolean> ACTION_CHECK_FIX = new ResultRunnable<Boolean>()
@@ -238,7 +1087,80 @@ public final class Fixer
 
     public static boolean checkFix() throws CommandException, IOException
     {
-        return runCommand(getTetheringCheckRawCmd()).exitcode == RETURN_CODE_CHECK_POSITIVE;
+        final int strategies = getStrategies();
+        // the subnets may have changed even if the rules haven't; a check only compares, the fix updates the set
+        if ((strategies & STRATEGY_MASQUERADE) != 0 && !isTetherSetInSync()) return false;
+        return getUnfixedUpstreams(getTargets(strategies), getUpstreams()).isEmpty();
+    }
+
+    /**
+     * Checks all the families together: their snapshots are read by the same command, and where there's no snapshot
+     * the rules are checked one by one in the same batch.
+     *
+     * @return the upstreams that are missing the rule, only for the targets that have some
+     */
+    private static Map<Target, List<String>> getUnfixedUpstreams(Target[] group, Set<String> upstreams)
+            throws CommandException, IOException
+    {
+        readSnapshots(group);
+        if (nftEnabled) return getUnfixedNftUpstreams(group, upstreams);
+        final Map<Target, List<String>> unfixed = new LinkedHashMap<>();
+        final List<Target> unknown = new ArrayList<>(group.length);
+        for (Target target : getEnabledTargets(group))
+        {
+            final TableSnapshot snapshot = target.snapshot;
+            if (snapshot == null)
+            {
+                unknown.add(target);
+                continue;
+            }
+            final List<String> missing = new ArrayList<>(upstreams.size());
+            for (String upstream : upstreams)
+                if (!snapshot.contains(target.chain, target.getRule(upstream))) missing.add(upstream);
+            if (!missing.isEmpty()) unfixed.put(target, missing);
+        }
+        if (unknown.isEmpty()) return unfixed;
+
+        final List<String> checks = new ArrayList<>(unknown.size() * upstreams.size());
+        for (Target target : unknown)
+            for (String upstream : upstreams) checks.add(target.getRawCmd(IPTABLES_CMD_CHECK, upstream));
+        final boolean[] standalone = new boolean[checks.size()];
+        Arrays.fill(standalone, true); // read-only
+        final CommandResult[] results = runAllLocked(checks.toArray(new String[checks.size()]), standalone);
+        for (int t = 0, base = 0; t < unknown.size(); t++, base += upstreams.size())
+        {
+            final Target target = unknown.get(t);
+            final List<String> missing = new ArrayList<>(upstreams.size());
+            int i = base;
+            for (String upstream : upstreams)
+            {
+                final CommandResult result = results[i++];
+                if (result.exitcode == CommandNotFoundException.RETURN_CODE_COMMAND_NOT_FOUND)
+                {
+                    fail(target, "Binary not found", new CommandNotFoundException(result));
+                    missing.clear();
+                    break;
+                }
+                if (result.exitcode != RETURN_CODE_CHECK_POSITIVE) missing.add(upstream);
+            }
+            if (!missing.isEmpty()) unfixed.put(target, missing);
+        }
+        return unfixed;
+    }
+
+    private static Map<Target, List<String>> getUnfixedNftUpstreams(Target[] group, Set<String> upstreams)
+    {
+        final Map<Target, List<String>> unfixed = new LinkedHashMap<>();
+        for (Target target : getEnabledTargets(group))
+        {
+            final NftSnapshot snapshot = target.nftSnapshot;
+            final List<String> missing = new ArrayList<>(upstreams.size());
+            for (String upstream : upstreams)
+                if (snapshot == null || !snapshot.contains(target.nftChain.name, target.getRule(upstream)))
+                    missing.add(upstream);
+            if (!missing.isEmpty()) unfixed.put(target, missing);
+        }
+        return unfixed;
     }
 
     /* *** FIX *** */
@@ -258,19 +1180,665 @@ public final class Fixer
         }
     };
 
+    /**
+     * Applies the rules of the chosen strategies to every active upstream at once, for all the families in the same
+     * script, along with the removal of the rules of the strategies no longer chosen.
+     * Where the table can be read, it's reconciled with the rules we want: only what's missing is added and any extra
+     * copy is removed, regardless of the flags, and if nothing is missing nothing is written. The rule of the tether
+     * matching mode not in use (ipset or plain subnet) is removed too.
+     * Otherwise falls back to checking (if asked to), deleting (if asked to) and appending rule by rule.
+     *
+     * @param check        only apply the rules that are missing; without a snapshot it costs a check per rule
+     * @param deleteBefore delete each rule before appending it, to avoid stacking copies
+     */
     public static void fix(boolean check, final boolean deleteBefore) throws IOException, CommandException
     {
-        final boolean isFixed = (check || deleteBefore) && checkFix();
-        if (isFixed) return;
-        if (deleteBefore) runCommand(getTetheringDeleteRawCmd());
-        CommandNotFoundException.throwIfNotFound(runCommand(getTetheringAppendRawCmd()));
+        final Set<String> upstreams = getUpstreams();
+        final SharedPreferences preferences = getPreferences();
+        final int strategies = getStrategies();
+        final int dropped = preferences.getInt(PREFERENCE_STRATEGIES_APPLIED, DEFAULT_STRATEGIES) & ~strategies;
+        // before any rule refers to the set
+        if ((strategies & STRATEGY_MASQUERADE) != 0) syncTetherSet();
+        // without a check we can't trust the cache, but one read is still cheaper than blindly writing
+        if (!check) invalidateSnapshot();
+        preferences.edit().putInt(PREFERENCE_STRATEGIES_APPLIED, strategies | dropped).apply();
+        apply(getTargets(strategies), getTargets(dropped), upstreams, check, deleteBefore);
+        preferences.edit().putInt(PREFERENCE_STRATEGIES_APPLIED, strategies).apply();
+    }
+
+    /**
+     * @param dropped the targets whose rules must go instead, where they can be found
+     */
+    private static void apply(Target[] group, Target[] dropped, Set<String> upstreams, boolean check,
+                              boolean deleteBefore) throws IOException, CommandException
+    {
+        if (nftEnabled)
+        {
+            applyNft(group, dropped, upstreams);
+            return;
+        }
+        readSnapshots(group);
+
+        final Map<Target, IptablesTransaction> transactions = new LinkedHashMap<>();
+        remove(dropped, upstreams, transactions);
+        final List<Target> blind = new ArrayList<>(group.length);
+        for (Target target : getEnabledTargets(group))
+        {
+            final TableSnapshot snapshot = target.snapshot;
+            if (snapshot != null)
+            {
+                final List<Placement> placements = new ArrayList<>(upstreams.size());
+                final IptablesTransaction transaction =
+                        Reconciler.reconcile(snapshot, target.getPlacedRules(snapshot, upstreams, placements));
+                if (target == TARGET_IPV4) Fixer.placements = Collections.unmodifiableList(placements);
+                for (String upstream : upstreams)
+                {
+                    final String replaced = target.getReplacedRule(upstream);
+                    if (replaced == null) continue;
+                    for (int i = snapshot.count(target.chain, replaced); i > 0; i--)
+                        transaction.delete(target.chain, replaced);
+                }
+                if (!transaction.isEmpty())
+                {
+                    log(String.format("Reconciling %s: %s", target.family, transaction.getOperations()));
+                    log(String.format("Placement in %s: %s", target.family, placements));
+                    transactions.put(target, transaction);
+                }
+            }
+            else blind.add(target);
+        }
+
+        if (!blind.isEmpty())
+        {
+            final Map<Target, List<String>> unfixed;
+            if (check || deleteBefore) unfixed = getUnfixedUpstreams(group, upstreams);
+            else
+            {
+                unfixed = new LinkedHashMap<>();
+                for (Target target : getEnabledTargets(group)) unfixed.put(target, new ArrayList<>(upstreams));
+            }
+            for (Map.Entry<Target, List<String>> entry : unfixed.entrySet())
+            {
+                final Target target = entry.getKey();
+                if (!blind.contains(target)) continue; // already reconciled
+                final IptablesTransaction transaction = new IptablesTransaction(target.table);
+                // a rule that doesn't depend on the upstream is the same for all of them
+                final Set<String> rules = new HashSet<>(upstreams.size() * 4 / 3 + 1);
+                for (String upstream : entry.getValue())
+                {
+                    final String rule = target.getRule(upstream);
+                    if (!rules.add(rule)) continue;
+                    // when deleteBefore is set we just checked the rules aren't there, and deleting a missing rule
+                    // would make the whole transaction fail, so only plain commands get to delete
+                    if (deleteBefore && !target.transactionsEnabled) transaction.delete(target.chain, rule);
+                    transaction.append(target.chain, rule);
+                }
+                transactions.put(target, transaction);
+            }
+        }
+        commit(transactions);
+    }
+
+    /**
+     * Adds the removal of every copy of the rules of the targets to the transactions, in both tether matching modes.
+     * The targets whose table can't be read are skipped, as deleting a missing rule makes the whole transaction fail.
+     */
+    private static void remove(Target[] group, Set<String> upstreams, Map<Target, IptablesTransaction> transactions)
+            throws IOException, CommandException
+    {
+        readSnapshots(group);
+        for (Target target : getEnabledTargets(group))
+        {
+            final TableSnapshot snapshot = target.snapshot;
+            if (snapshot == null) continue;
+            final Set<String> rules = new HashSet<>(upstreams.size() * 8 / 3 + 1);
+            for (String upstream : upstreams)
+            {
+                rules.add(target.getRule(upstream));
+                final String replaced = target.getReplacedRule(upstream);
+                if (replaced != null) rules.add(replaced);
+            }
+            final IptablesTransaction transaction = new IptablesTransaction(target.table);
+            for (String rule : rules)
+                for (int i = snapshot.count(target.chain, rule); i > 0; i--) transaction.delete(target.chain, rule);
+            if (transaction.isEmpty()) continue;
+            log(String.format("Removing from %s: %s", target.family, transaction.getOperations()));
+            transactions.put(target, transaction);
+        }
+    }
+
+    /**
+     * Reconciles our nftables table with the rules we want, for all the families in a single batch: only what's
+     * missing is added, any extra copy is removed and so are the rules of the dropped targets. The batch is all or
+     * nothing, so if it fails the targets that aren't required are given up on and it's tried again without them.
+     */
+    private static void applyNft(Target[] group, Target[] dropped, Set<String> upstreams)
+            throws IOException, CommandException
+    {
+        readNftSnapshots(group);
+        readNftSnapshots(dropped);
+
+        final List<NftPart> parts = new ArrayList<>(group.length + dropped.length);
+        for (Target target : getEnabledTargets(group)) parts.add(new NftPart(target, upstreams, false));
+        for (Target target : getEnabledTargets(dropped)) parts.add(new NftPart(target, upstreams, true));
+        final NftTransaction committed;
+        try
+        {
+            committed = NftBatch.commit(runner, NFT_TABLE, parts);
+        }
+        catch (IOException | CommandException e)
+        {
+            invalidateSnapshot(); // can't tell what went through
+            throw e;
+        }
+        if (committed == null) return;
+        invalidateSnapshot();
+        log(String.format("Reconciled nftables: %s", committed.getOperations()));
+    }
+
+    /**
+     * The rules of a target in the nftables batch, reconciled with the snapshot read before it: only what's missing
+     * is added and any extra copy is removed, or all of them if the target was dropped.
+     */
+    private static final class NftPart implements NftBatch.Part
+    {
+        private final Target      target;
+        private final NftSnapshot snapshot;
+        private final Set<String> upstreams;
+        private final boolean     dropped;
+
+        private NftPart(Target target, Set<String> upstreams, boolean dropped)
+        {
+            this.target = target;
+            this.snapshot = target.nftSnapshot;
+            this.upstreams = upstreams;
+            this.dropped = dropped;
+        }
+
+        @Override
+        public boolean isRequired()
+        {
+            return target.required;
+        }
+
+        @Override
+        public void addTo(NftTransaction transaction)
+        {
+            final String family = target.family.nftFamily;
+            final String chain = target.nftChain.name;
+            final Set<String> rules = new HashSet<>(upstreams.size() * 4 / 3 + 1);
+            if (dropped)
+            {
+                for (String upstream : upstreams) rules.add(target.getRule(upstream));
+                for (String rule : rules)
+                    for (long handle : snapshot.getHandles(chain, rule)) transaction.delete(family, chain, handle);
+                return;
+            }
+            if (!snapshot.hasChain(chain)) transaction.newChain(family, target.nftChain);
+            for (String upstream : upstreams)
+            {
+                final String rule = target.getRule(upstream);
+                if (!rules.add(rule)) continue;
+                final List<Long> handles = snapshot.getHandles(chain, rule);
+                if (handles.isEmpty()) transaction.add(family, chain, target.getNftRule(upstream), rule);
+                for (int i = 1; i < handles.size(); i++) transaction.delete(family, chain, handles.get(i));
+            }
+        }
+
+        @Override
+        public void giveUp(CommandNotOkException error)
+        {
+            disable(target, "Batch failed", error);
+        }
+    }
+
+    /* *** CLAMP MSS *** */
+
+    private static SharedPreferences getPreferences()
+    {
+        return Application.getInstance().getSharedPreferences(PREFERENCES, Context.MODE_PRIVATE);
+    }
+
+    public static boolean isMssClampingEnabled()
+    {
+        return getPreferences().getBoolean(PREFERENCE_MSS_CLAMPING, DEFAULT_MSS_CLAMPING);
+    }
+
+    /**
+     * Takes effect the next time the steps run.
+     */
+    public static void setMssClampingEnabled(boolean mssClamping)
+    {
+        getPreferences().edit().putBoolean(PREFERENCE_MSS_CLAMPING, mssClamping).apply();
+    }
+
+    public static void clampMssAsync(Async.Callback<Void> callback)
+    {
+        runAsync(callback, ACTION_CLAMP_MSS);
+    }
+
+    private static final ResultRunnable<Void> ACTION_CLAMP_MSS = new ResultRunnable<Void>()
+    {
+        @Override
+        public Void run(Object... extras) throws Throwable
+        {
+            clampMss();
+            return null;
+        }
+    };
+
+    /**
+     * Brings the TCPMSS rules in line with the setting, through the same snapshots and batched commit as the fix:
+     * if enabled they're added where missing, otherwise any copy found is removed.
+     */
+    public static void clampMss() throws IOException, CommandException
+    {
+        final SharedPreferences preferences = getPreferences();
+        if (isMssClampingEnabled())
+        {
+            preferences.edit().putBoolean(PREFERENCE_MSS_CLAMPING_APPLIED, true).apply();
+            // the rule doesn't depend on the upstream
+            apply(MSS_TARGETS, new Target[0], Collections.singleton(DEFAULT_UPSTREAM), true, false);
+            return;
+        }
+        if (!preferences.getBoolean(PREFERENCE_MSS_CLAMPING_APPLIED, false)) return;
+
+        apply(new Target[0], MSS_TARGETS, Collections.singleton(DEFAULT_UPSTREAM), true, false);
+        preferences.edit().putBoolean(PREFERENCE_MSS_CLAMPING_APPLIED, false).apply();
+    }
+
+    /* *** LOW LATENCY *** */
+
+    public static boolean isLowLatencyEnabled()
+    {
+        return getPreferences().getBoolean(PREFERENCE_LOW_LATENCY, DEFAULT_LOW_LATENCY);
+    }
+
+    /**
+     * Takes effect the next time the steps run.
+     */
+    public static void setLowLatencyEnabled(boolean lowLatency)
+    {
+        getPreferences().edit().putBoolean(PREFERENCE_LOW_LATENCY, lowLatency).apply();
+    }
+
+    /**
+     * @return the rate the upstream is shaped to in kbit/s, {@link TrafficControl#RATE_NONE} if it's not
+     */
+    public static int getLowLatencyRate()
+    {
+        return getPreferences().getInt(PREFERENCE_LOW_LATENCY_RATE, TrafficControl.RATE_NONE);
+    }
+
+    /**
+     * @param rate in kbit/s, a bit below the actual uplink speed; {@link TrafficControl#RATE_NONE} not to shape
+     */
+    public static void setLowLatencyRate(int rate)
+    {
+        if (rate < TrafficControl.RATE_NONE) throw new IllegalArgumentException("Invalid rate: " + rate);
+        getPreferences().edit().putInt(PREFERENCE_LOW_LATENCY_RATE, rate).apply();
+    }
+
+    /**
+     * @return whether {@code tc} is there to manage the qdisc, as far as the last probe knows; if not, the setting is
+     *         ignored
+     */
+    public static boolean isLowLatencySupported()
+    {
+        final int capabilities = getCachedCapabilities();
+        return capabilities == Capabilities.UNKNOWN || Capabilities.has(capabilities, Capabilities.TC);
+    }
+
+    public static void applyLowLatencyAsync(Async.Callback<Void> callback)
+    {
+        runAsync(callback, ACTION_APPLY_LOW_LATENCY);
+    }
+
+    private static final ResultRunnable<Void> ACTION_APPLY_LOW_LATENCY = new ResultRunnable<Void>()
+    {
+        @Override
+        public Void run(Object... extras) throws Throwable
+        {
+            applyLowLatency();
+            return null;
+        }
+    };
+
+    /**
+     * Brings the qdisc of the upstreams in line with the setting. If enabled, every upstream still on the kernel's
+     * default qdisc gets {@code cake} (or {@code fq_codel} where it's not available) and the result is read back to
+     * verify it; those where someone else put a qdisc are left alone, as it couldn't be put back.
+     * Upstreams no longer in use, or all of them if disabled, get the kernel's default back.
+     */
+    public static void applyLowLatency() throws IOException, CommandException
+    {
+        if (!isLowLatencySupported())
+        {
+            log("tc not found, no low latency mode.");
+            return;
+        }
+        synchronized (lowLatencyLock)
+        {
+            final Set<String> upstreams = isLowLatencyEnabled() ? getUpstreams() : Collections.<String>emptySet();
+            for (String iface : getLowLatencyApplied())
+                if (!upstreams.contains(iface)) restoreQdisc(iface);
+            final int rate = getLowLatencyRate();
+            for (String upstream : upstreams) applyQdisc(upstream, rate);
+        }
+    }
+
+    private static Set<String> getLowLatencyApplied()
+    {
+        // the returned set must not be modified
+        return new HashSet<>(getPreferences().getStringSet(PREFERENCE_LOW_LATENCY_APPLIED,
+                                                           Collections.<String>emptySet()));
+    }
+
+    private static void setLowLatencyApplied(String iface, boolean applied)
+    {
+        final Set<String> interfaces = getLowLatencyApplied();
+        if (applied ? !interfaces.add(iface) : !interfaces.remove(iface)) return;
+        // committed right away: if we're killed halfway through, the next process must know the qdisc is ours
+        getPreferences().edit().putStringSet(PREFERENCE_LOW_LATENCY_APPLIED, interfaces).commit();
+    }
+
+    private static void applyQdisc(String iface, int rate) throws IOException, CommandException
+    {
+        final String kind = cakeSupported ? TrafficControl.KIND_CAKE : TrafficControl.KIND_FQ_CODEL;
+        final String expected = TrafficControl.getRootKind(kind, rate);
+        final CommandResult show = runner.run(TrafficControl.getShowCommand(iface));
+        CommandNotOkException.throwIfNotOk(show);
+        final Qdisc root = TrafficControl.parseRoot(show.output);
+        final boolean applied = getLowLatencyApplied().contains(iface);
+        // the rate isn't checked: after changing it, disable and enable again
+        if (root != null && expected.equals(root.kind))
+        {
+            // without a record of it, it's most likely ours from before the record was lost
+            if (!applied) log(String.format("Qdisc of %s is already %s, taking it as ours.", iface, root));
+            setLowLatencyApplied(iface, true);
+            return;
+        }
+        // if it's ours but different, the interface was reset and whatever it has now is the kernel's default
+        if (!applied && !TrafficControl.isKernelDefault(root))
+        {
+            log(String.format("Qdisc of %s is %s, which couldn't be put back: leaving it.", iface, root));
+            return;
+        }
+        setLowLatencyApplied(iface, true);
+
+        final CommandResult[] results =
+                runner.runAll(new BatchCommand(TrafficControl.getApplyCommands(iface, kind, rate)));
+        for (CommandResult result : results)
+        {
+            CommandNotFoundException.throwIfNotFound(result);
+            if (result.exitcode == CommandNotOkException.RETURN_CODE_COMMAND_OK) continue;
+            if (!cakeSupported)
+            {
+                restoreQdisc(iface); // don't leave it half done
+                throw new CommandNotOkException(result);
+            }
+            log(String.format("Can't apply %s on %s, falling back to %s.", kind, iface,
+                              TrafficControl.KIND_FQ_CODEL));
+            cakeSupported = false;
+            applyQdisc(iface, rate);
+            return;
+        }
+
+        final CommandResult verify = runner.run(TrafficControl.getShowCommand(iface));
+        CommandNotOkException.throwIfNotOk(verify);
+        final Qdisc result = TrafficControl.parseRoot(verify.output);
+        log(String.format("Qdisc of %s: %s -> %s", iface, root, result));
+        if (result == null || !expected.equals(result.kind))
+        {
+            restoreQdisc(iface);
+            throw new CommandNotOkException(verify);
+        }
+    }
+
+    /**
+     * Failures are only logged, as the interface is most likely gone along with our qdisc.
+     */
+    private static void restoreQdisc(String iface) throws IOException, CommandException
+    {
+        final CommandResult result = runner.runAll(new BatchCommand(TrafficControl.getRestoreCommand(iface)))[0];
+        CommandNotFoundException.throwIfNotFound(result);
+        setLowLatencyApplied(iface, false);
+        log(String.format("Qdisc of %s restored to the default, exit code %d", iface, result.exitcode));
+    }
+
+    /* *** FLUSH TETHERED FLOWS *** */
+
+    public static boolean isFlushFlowsEnabled()
+    {
+        return flushFlowsEnabled;
+    }
+
+    /**
+     * Whether the steps flush the flows of the clients after applying the fix.
+     */
+    public static void setFlushFlowsEnabled(boolean flushFlowsEnabled)
+    {
+        Fixer.flushFlowsEnabled = flushFlowsEnabled;
+    }
+
+    /**
+     * Whether the whole connection tracking table can be flushed when {@code conntrack} isn't available to delete
+     * just the entries of the clients. Off by default: it drops the flows of the device itself too.
+     */
+    public static boolean isProcFlushEnabled()
+    {
+        return procFlushEnabled;
+    }
+
+    public static void setProcFlushEnabled(boolean procFlushEnabled)
+    {
+        Fixer.procFlushEnabled = procFlushEnabled;
+    }
+
+    public static void flushTetheredFlowsAsync(Async.Callback<ConntrackFlush.Result> callback,
+                                               Collection<String> interfaces)
+    {
+        runAsync(callback, ACTION_FLUSH_TETHERED_FLOWS, interfaces);
+    }
+
+    private static final ResultRunnable<ConntrackFlush.Result> ACTION_FLUSH_TETHERED_FLOWS =
+            new ResultRunnable<ConntrackFlush.Result>()
+            {
+                @Override
+                @SuppressWarnings("unchecked")
+                public ConntrackFlush.Result run(Object... extras) throws Throwable
+                {
+                    return flushTetheredFlows((Collection<String>)extras[0]);
+                }
+            };
+
+    /**
+     * Deletes the tracked connections of the clients in the tether subnets, so that their established flows get NAT
+     * again right away instead of failing until they time out.
+     * Only the clients of the tethering interfaces are looked for: any other local interface, like the Wi-Fi the
+     * device itself may be connected to, carries flows that aren't tethered.
+     *
+     * @param interfaces the tethering interfaces, {@code null} if unknown, in which case nothing is flushed
+     */
+    public static ConntrackFlush.Result flushTetheredFlows(Collection<String> interfaces)
+            throws IOException, CommandException
+    {
+        final long start = System.nanoTime();
+        final List<String> clients = new ArrayList<>();
+        if (interfaces != null && !interfaces.isEmpty())
+        {
+            final Set<String> subnets = TetherSubnets.get(interfaces);
+            for (String client : ArpTable.getClients(interfaces))
+                if (TetherSubnets.contains(subnets, client)) clients.add(client);
+        }
+
+        final ConntrackFlush.Result flush;
+        if (clients.isEmpty()) flush = new ConntrackFlush.Result(ConntrackFlush.METHOD_NONE, 0, getElapsed(start));
+        else
+        {
+            // no need to try if the probe didn't find it
+            final boolean conntrack = capabilities == Capabilities.UNKNOWN
+                                      || Capabilities.has(capabilities, Capabilities.CONNTRACK);
+            final CommandResult[] results =
+                    conntrack ? runner.runAll(new BatchCommand(ConntrackFlush.getDeleteCommands(clients))) : null;
+            if (conntrack && results[0].exitcode != CommandNotFoundException.RETURN_CODE_COMMAND_NOT_FOUND)
+            {
+                int flushed = 0;
+                for (CommandResult result : results)
+                {
+                    if (result.exitcode != CommandNotOkException.RETURN_CODE_COMMAND_OK
+                        && result.exitcode != ConntrackFlush.RETURN_CODE_NOTHING_DELETED)
+                        throw new CommandNotOkException(result);
+                    flushed += ConntrackFlush.parseDeleted(result.output);
+                }
+                flush = new ConntrackFlush.Result(ConntrackFlush.METHOD_CONNTRACK, flushed, getElapsed(start));
+            }
+            else if (!procFlushEnabled)
+                flush = new ConntrackFlush.Result(ConntrackFlush.METHOD_MISSING, 0, getElapsed(start));
+            else
+            {
+                final CommandResult result =
+                        runner.runAll(new BatchCommand(ConntrackFlush.getProcFlushCommand()))[0];
+                flush = result.exitcode == CommandNotOkException.RETURN_CODE_COMMAND_OK
+                        ? new ConntrackFlush.Result(ConntrackFlush.METHOD_PROC,
+                                                    ConntrackFlush.parseProcFlushed(result.output), getElapsed(start))
+                        : new ConntrackFlush.Result(ConntrackFlush.METHOD_MISSING, 0, getElapsed(start));
+            }
+        }
+        log("Flush tethered flows: " + flush);
+        return flush;
+    }
+
+    private static long getElapsed(long startNanos)
+    {
+        return (System.nanoTime() - startNanos) / 1000000;
+    }
+
+    /* *** READ FIX COUNTERS *** */
+
+    public static void readFixCountersAsync(Async.Callback<CounterCommand> callback)
+    {
+        runAsync(ShellExecutor.PRIORITY_LOW, callback, ACTION_READ_FIX_COUNTERS);
+    }
+
+    private static final ResultRunnable<CounterCommand> ACTION_READ_FIX_COUNTERS =
+            new ResultRunnable<CounterCommand>()
+            {
+                @Override
+                public CounterCommand run(Object... extras) throws Throwable
+                {
+                    return readFixCounters();
+                }
+            };
+
+    /**
+     * Adds up the counters of the rules of all the active upstreams, in every family, for the first strategy in use:
+     * the rules of the others see the same packets. Starts the shell if needed, as it's usually closed once the steps
+     * are done: only to be called while some component holds it, so that it's never opened behind the user's back.
+     *
+     * @return {@code null} if the rules have no counters to read, as with nftables
+     */
+    public static CounterCommand readFixCounters()
+            throws IOException, CommandException, TimeoutException, RootDeniedException
+    {
+        if (nftEnabled) return null;
+        if (!runner.getShell().isOpen()) startRootShell();
+        final Set<String> upstreams = UpstreamInterfaces.get().isEmpty() ? getUpstreams() : UpstreamInterfaces.get();
+        final Target[] group = (getStrategies() & STRATEGY_MASQUERADE) != 0 ? TARGETS : TTL_TARGETS;
+        final List<CounterCommand.Rules> rules = new ArrayList<>(group.length);
+        for (Target target : getEnabledTargets(group))
+        {
+            final String[] specs = new String[upstreams.size()];
+            int i = 0;
+            for (String upstream : upstreams) specs[i++] = target.getRule(upstream);
+            rules.add(new CounterCommand.Rules(target.family.saveBinary, target.table, target.chain, specs));
+        }
+        if (rules.isEmpty()) return null;
+        final CounterCommand cmd = new CounterCommand(rules.toArray(new CounterCommand.Rules[rules.size()]));
+        for (CommandResult result : runner.runAll(cmd)) CommandNotOkException.throwIfNotOk(result);
+        return cmd;
+    }
+
+    /* *** UPDATE CLIENT ACCOUNTING *** */
+
+    public static void updateClientAccountingAsync(Async.Callback<List<ClientUsage>> callback,
+                                                   Collection<String> interfaces)
+    {
+        runAsync(ShellExecutor.PRIORITY_LOW, callback, ACTION_UPDATE_CLIENT_ACCOUNTING, interfaces);
+    }
+
+    private static final ResultRunnable<List<ClientUsage>> ACTION_UPDATE_CLIENT_ACCOUNTING =
+            new ResultRunnable<List<ClientUsage>>()
+            {
+                @Override
+                @SuppressWarnings("unchecked")
+                public List<ClientUsage> run(Object... extras) throws Throwable
+                {
+                    return updateClientAccounting((Collection<String>)extras[0]);
+                }
+            };
+
+    /**
+     * Reads the {@code filter} table once, reporting the traffic counted so far and bringing the accounting chain in
+     * line with the clients currently in the ARP table. Only the rules of the clients that joined or left are written.
+     *
+     * @param interfaces the tethering interfaces, {@code null} if unknown
+     * @return the traffic of each client, including those that just left (this is their last reading)
+     */
+    public static List<ClientUsage> updateClientAccounting(Collection<String> interfaces)
+            throws IOException, CommandException, TimeoutException, RootDeniedException
+    {
+        if (!runner.getShell().isOpen()) startRootShell();
+        final TableSnapshot snapshot = readAccountingSnapshot();
+        final List<ClientUsage> usage = AccountingChain.getUsage(snapshot);
+        final IptablesTransaction transaction =
+                AccountingChain.update(snapshot, ArpTable.getClients(interfaces));
+        if (!transaction.isEmpty())
+        {
+            log(String.format("Updating client accounting: %s", transaction.getOperations()));
+            commit(Collections.singletonMap(TARGET_IPV4, transaction));
+        }
+        return usage;
+    }
+
+    /**
+     * Not cached like the {@code nat} snapshots: the counters are what we're after.
+     */
+    private static TableSnapshot readAccountingSnapshot() throws IOException, CommandException
+    {
+        final SnapshotCommand cmd = new SnapshotCommand(TARGET_IPV4.family.saveBinary, AccountingChain.TABLE);
+        CommandNotOkException.throwIfNotOk(runner.runAll(cmd)[0]);
+        return cmd.getSnapshot(0);
+    }
+
+    /* *** REMOVE CLIENT ACCOUNTING *** */
+
+    public static void removeClientAccountingAsync(Async.Callback<Void> callback)
+    {
+        runAsync(ShellExecutor.PRIORITY_LOW, callback, ACTION_REMOVE_CLIENT_ACCOUNTING);
+    }
+
+    private static final ResultRunnable<Void> ACTION_REMOVE_CLIENT_ACCOUNTING = new ResultRunnable<Void>()
+    {
+        @Override
+        public Void run(Object... extras) throws Throwable
+        {
+            removeClientAccounting();
+            return null;
+        }
+    };
+
+    public static void removeClientAccounting() throws IOException, CommandException
+    {
+        final IptablesTransaction transaction = AccountingChain.remove(readAccountingSnapshot());
+        if (!transaction.isEmpty()) commit(Collections.singletonMap(TARGET_IPV4, transaction));
     }
 
     /* *** IS FIX AT BOOT ENABLED *** */
 
     public static void isFixAtBootEnabledAsync(Async.Callback<Boolean> callback)
     {
-        runAsync(callback, ACTION_IS_FIX_AT_BOOT_ENABLED);
+        runAsync(ShellExecutor.PRIORITY_HIGH, callback, ACTION_IS_FIX_AT_BOOT_ENABLED);
     }
 
     private static final ResultRunnable<Boolean> ACTION_IS_FIX_AT_BOOT_ENABLED = new ResultRunnable<Boolean>()
@@ -287,20 +1855,25 @@ public final class Fixer
         final Context context = Application.getInstance();
         final boolean bootReceiver = PackageManager.isBootReceiverEnabled(Application.getInstance());
         final boolean stepsService = PackageManager.isStepsServiceEnabled(Application.getInstance());
+        final boolean fixAtBoot;
         if (stepsService != bootReceiver) // one is disabled
         {
             if (stepsService) PackageManager.setStepsServiceEnabled(context, false);
             if (bootReceiver) PackageManager.setBootReceiverEnabled(context, false);
-            return false;
+            fixAtBoot = false;
         }
-        else return bootReceiver;
+        else fixAtBoot = bootReceiver;
+        // keeping the fix applied when the network changes goes along with it
+        if (PackageManager.isNetworkReceiverEnabled(context) != fixAtBoot)
+            PackageManager.setNetworkReceiverEnabled(context, fixAtBoot);
+        return fixAtBoot;
     }
 
     /* *** SET FIX AT BOOT ENABLED *** */
 
     public static void setFixAtBootEnabledAsync(Async.Callback<Void> callback, boolean fixAtBoot)
     {
-        runAsync(callback, ACTION_SET_FIX_AT_BOOT_ENABLED, fixAtBoot);
+        runAsync(ShellExecutor.PRIORITY_HIGH, callback, ACTION_SET_FIX_AT_BOOT_ENABLED, fixAtBoot);
     }
 
     private static final ResultRunnable<Void> ACTION_SET_FIX_AT_BOOT_ENABLED = new ResultRunnable<Void>()
@@ -318,5 +1891,6 @@ public final class Fixer
         final Context context = Application.getInstance();
         PackageManager.setBootReceiverEnabled(context, fixAtBoot);
         PackageManager.setStepsServiceEnabled(context, fixAtBoot);
+        PackageManager.setNetworkReceiverEnabled(context, fixAtBoot);
     }
 }
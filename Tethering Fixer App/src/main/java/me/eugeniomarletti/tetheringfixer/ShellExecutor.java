@@ -0,0 +1,225 @@
+/*
+ * The MIT License (MIT)
+ *
+ * Copyright (c) 2014 Eugenio Marletti
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in
+ * all copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN
+ * THE SOFTWARE.
+ */
+
+package me.eugeniomarletti.tetheringfixer;
+
+import java.util.concurrent.Executor;
+import java.util.concurrent.PriorityBlockingQueue;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.Semaphore;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Long-lived executor with a fixed number of threads, which park when idle instead of being destroyed.
+ * Tasks wait in a bounded queue ordered by priority (then by submission); when it's full, background callers are
+ * slowed down until there's room again, while the main thread is never blocked and gets rejected instead.
+ */
+public final class ShellExecutor implements Executor
+{
+    public static final int PRIORITY_LOW    = 0; // background work nobody is waiting for
+    public static final int PRIORITY_NORMAL = 1; // boot, service
+    public static final int PRIORITY_HIGH   = 2; // the user is looking at it
+
+    // how long a background caller can be kept waiting for room in the queue
+    private static final long BACKPRESSURE_TIMEOUT = 5000;
+
+    public final String name;
+    public final int    capacity;
+
+    private final ThreadPoolExecutor executor;
+    private final Semaphore          slots;
+    private final AtomicLong         sequence = new AtomicLong();
+
+    // stats
+    private final AtomicLong executed      = new AtomicLong();
+    private final AtomicLong rejected      = new AtomicLong();
+    private final AtomicLong totalWaitTime = new AtomicLong();
+    private final AtomicLong maxWaitTime   = new AtomicLong();
+    private final AtomicLong lastWaitTime  = new AtomicLong();
+
+    public ShellExecutor(final String name, int threads, int capacity)
+    {
+        this.name = name;
+        this.capacity = capacity;
+        slots = new Semaphore(capacity);
+        executor = new ThreadPoolExecutor(threads, threads, 0L, TimeUnit.MILLISECONDS,
+                                          new PriorityBlockingQueue<Runnable>(capacity), new ThreadFactory()
+        {
+            private final AtomicInteger count = new AtomicInteger();
+
+            @Override
+            public Thread newThread(Runnable r)
+            {
+                final Thread thread = new Thread(r, String.format("%s #%d", name, count.incrementAndGet()));
+                thread.setDaemon(true);
+                return thread;
+            }
+        });
+    }
+
+    @Override
+    public void execute(Runnable command)
+    {
+        execute(command, PRIORITY_NORMAL);
+    }
+
+    public void execute(Runnable command, int priority)
+    {
+        if (command == null) throw new NullPointerException();
+        if (!acquireSlot())
+        {
+            rejected.incrementAndGet();
+            throw new RejectedExecutionException(String.format("%s: queue full (%d).", name, capacity));
+        }
+        try
+        {
+            executor.execute(new Task(command, priority, sequence.getAndIncrement()));
+        }
+        catch (RejectedExecutionException e)
+        {
+            slots.release();
+            rejected.incrementAndGet();
+            throw e;
+        }
+    }
+
+    private boolean acquireSlot()
+    {
+        if (slots.tryAcquire()) return true;
+        if (Utils.isMainThread()) return false;
+        try
+        {
+            return slots.tryAcquire(BACKPRESSURE_TIMEOUT, TimeUnit.MILLISECONDS);
+        }
+        catch (InterruptedException e)
+        {
+            Thread.currentThread().interrupt();
+            return false;
+        }
+    }
+
+    /**
+     * @return a view of this executor that submits everything with the given priority
+     */
+    public Executor withPriority(final int priority)
+    {
+        return new Executor()
+        {
+            @Override
+            public void execute(Runnable command)
+            {
+                ShellExecutor.this.execute(command, priority);
+            }
+        };
+    }
+
+    /**
+     * @return how many tasks are waiting for a thread
+     */
+    public int getQueueDepth()
+    {
+        return executor.getQueue().size();
+    }
+
+    public int getActiveCount()
+    {
+        return executor.getActiveCount();
+    }
+
+    public long getExecutedCount()
+    {
+        return executed.get();
+    }
+
+    public long getRejectedCount()
+    {
+        return rejected.get();
+    }
+
+    /**
+     * @return how long tasks waited in the queue before running, in milliseconds
+     */
+    public long getAverageWaitTime()
+    {
+        final long count = executed.get();
+        return count == 0 ? 0 : TimeUnit.NANOSECONDS.toMillis(totalWaitTime.get() / count);
+    }
+
+    public long getMaxWaitTime()
+    {
+        return TimeUnit.NANOSECONDS.toMillis(maxWaitTime.get());
+    }
+
+    public long getLastWaitTime()
+    {
+        return TimeUnit.NANOSECONDS.toMillis(lastWaitTime.get());
+    }
+
+    @Override
+    public String toString()
+    {
+        return String.format("%s: %d active, %d queued, %d executed, %d rejected, wait avg %dms max %dms",
+                             name, getActiveCount(), getQueueDepth(), getExecutedCount(), getRejectedCount(),
+                             getAverageWaitTime(), getMaxWaitTime());
+    }
+
+    private final class Task implements Runnable, Comparable<Task>
+    {
+        public final Runnable command;
+        public final int      priority;
+        public final long     sequence;
+        public final long     queuedAt = System.nanoTime();
+
+        private Task(Runnable command, int priority, long sequence)
+        {
+            this.command = command;
+            this.priority = priority;
+            this.sequence = sequence;
+        }
+
+        @Override
+        public void run()
+        {
+            slots.release();
+            final long wait = System.nanoTime() - queuedAt;
+            lastWaitTime.set(wait);
+            totalWaitTime.addAndGet(wait);
+            long max = maxWaitTime.get();
+            while (wait > max && !maxWaitTime.compareAndSet(max, wait)) max = maxWaitTime.get();
+            executed.incrementAndGet();
+            command.run();
+        }
+
+        @Override
+        public int compareTo(Task another)
+        {
+            if (priority != another.priority) return priority > another.priority ? -1 : 1;
+            return sequence < another.sequence ? -1 : (sequence == another.sequence ? 0 : 1);
+        }
+    }
+}
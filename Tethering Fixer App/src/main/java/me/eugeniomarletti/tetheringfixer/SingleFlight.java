@@ -0,0 +1,141 @@
+/*
+ * The MIT License (MIT)
+ *
+ * Copyright (c) 2014 Eugenio Marletti
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in
+ * all copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN
+ * THE SOFTWARE.
+ */
+
+package me.eugeniomarletti.tetheringfixer;
+
+import java.util.ArrayList;
+import java.util.List;
+
+/**
+ * Deduplicates concurrent executions of the same operation: whoever asks while one is already running just waits for
+ * its result instead of starting another one.
+ * Successful results can also be remembered for a short time, so that callers arriving right after get them too.
+ */
+public final class SingleFlight<T>
+{
+    public static interface Operation<T>
+    {
+        /**
+         * Must eventually call the callback exactly once.
+         */
+        public void start(Async.Callback<T> callback);
+    }
+
+    public final long ttl;
+
+    private Flight<T> flight = null; // the one new callers join, null if none
+    private T       result;
+    private long    resultTime;
+    private boolean hasResult = false;
+    private int     generation = 0; // bumped by forget(), so that forgotten flights are neither joined nor remembered
+
+    private static final class Flight<T>
+    {
+        final int                     generation;
+        final List<Async.Callback<T>> waiting = new ArrayList<>(2);
+
+        Flight(int generation)
+        {
+            this.generation = generation;
+        }
+    }
+
+    /**
+     * @param ttl how long a successful result is reused for, in milliseconds; 0 to only share in-flight executions
+     */
+    public SingleFlight(long ttl)
+    {
+        this.ttl = ttl;
+    }
+
+    public void execute(Async.Callback<T> callback, Operation<T> operation)
+    {
+        final boolean isCached;
+        final T cached;
+        final Flight<T> started;
+        synchronized (this)
+        {
+            isCached = hasResult && System.currentTimeMillis() - resultTime < ttl;
+            if (isCached)
+            {
+                cached = result;
+                started = null;
+            }
+            else
+            {
+                hasResult = false;
+                if (flight != null && flight.generation == generation)
+                {
+                    flight.waiting.add(callback);
+                    return;
+                }
+                // a forgotten flight is left to land for whoever joined it
+                flight = started = new Flight<>(generation);
+                started.waiting.add(callback);
+                cached = null;
+            }
+        }
+        if (isCached) Async.returnCallback(callback, cached, true, null);
+        else operation.start(new Async.Callback<T>()
+        {
+            @Override
+            public void callback(T result, boolean success, Throwable error)
+            {
+                landed(started, result, success, error);
+            }
+        });
+    }
+
+    private void landed(Flight<T> landed, T result, boolean success, Throwable error)
+    {
+        synchronized (this)
+        {
+            if (flight == landed) flight = null;
+            if (success && ttl > 0 && landed.generation == generation)
+            {
+                this.result = result;
+                this.resultTime = System.currentTimeMillis();
+                this.hasResult = true;
+            }
+        }
+        // nobody joins it any more, so it can be read outside of the lock
+        for (Async.Callback<T> callback : landed.waiting) Async.returnCallback(callback, result, success, error);
+    }
+
+    /**
+     * Drops the remembered result, and makes whoever asks next start a new execution instead of joining the current
+     * one; callers already waiting still get the result of the current execution.
+     */
+    public synchronized void forget()
+    {
+        hasResult = false;
+        result = null;
+        generation++;
+    }
+
+    public synchronized boolean isInFlight()
+    {
+        return flight != null;
+    }
+}
@@ -28,6 +28,8 @@ import android.os.Handler;
 import android.util.Log;
 import com.stericson.RootTools.exceptions.RootDeniedException;
 import me.eugeniomarletti.tetheringfixer.android.Application;
+import me.eugeniomarletti.tetheringfixer.android.NetworkBroadcastReceiver;
+import me.eugeniomarletti.tetheringfixer.netfilter.ConntrackFlush;
 import org.acra.ACRA;
 
 import java.io.IOException;
@@ -80,40 +82,47 @@ public final class Steps
     private static final Step[]       STEPS;
     private static final List<String> LABELS;
     private static int CURRENT_STEP_INDEX = -1;
+    private static int PASSED_STEP_INDEX  = -1; // the last step that asked to advance, even if still pausing
 
     static
     {
         STEPS = new Step[]
                 {
-                        new Step(R.string.step_check_root, new Runnable()
+                        new Step(R.string.step_check_root, new Probe<Boolean>()
                         {
                             @Override
-                            public void run()
+                            protected void start(Async.Callback<Boolean> callback)
                             {
                                 log("Step 1: check root available...");
-                                Fixer.checkRootAvailableAsync(new Async.SimpleMainThreadCallback<Boolean>()
+                                Fixer.checkRootAvailableAsync(callback);
+                            }
+
+                            @Override
+                            protected boolean isPassed(Boolean result)
+                            {
+                                return result != null && result;
+                            }
+
+                            @Override
+                            protected void handle(Boolean result, boolean success, Throwable error)
+                            {
+                                logCallback(result, success, error, true);
+                                final boolean _success = success && result != null;
+                                if (_success && result) advanceStep();
+                                else
                                 {
-                                    @Override
-                                    public void mainThreadCallback(Boolean result, boolean success, Throwable error)
-                                    {
-                                        logCallback(result, success, error, true);
-                                        final boolean _success = success && result != null;
-                                        if (_success && result) advanceStep();
-                                        else
-                                        {
-                                            //error
-                                            Integer errorText = null;
-                                            if (result != null && !result)
-                                                errorText = R.string.error_no_root;
-                                            else if (error != null && error instanceof IOException)
-                                                errorText = R.string.error_io;
-                                            error(errorText);
-                                        }
-                                    }
-                                });
+                                    //error
+                                    Integer errorText = null;
+                                    if (result != null && !result)
+                                        errorText = R.string.error_no_root;
+                                    else if (error != null && error instanceof IOException)
+                                        errorText = R.string.error_io;
+                                    error(errorText);
+                                }
                             }
                         }),
 
+                        // not a probe: it can bring up the superuser prompt, which must wait for its turn
                         new Step(R.string.step_get_root, new Runnable()
                         {
                             @Override
@@ -147,29 +156,60 @@ public final class Steps
                             }
                         }),
 
-                        new Step(R.string.step_check_components, new Runnable()
+                        new Step(R.string.step_check_components, new Probe<Boolean>(1)
                         {
                             @Override
-                            public void run()
+                            protected void start(Async.Callback<Boolean> callback)
                             {
                                 log("Step 3: check binary exists...");
-                                Fixer.checkIptablesExistsAsync(new Async.SimpleMainThreadCallback<Boolean>()
+                                Fixer.checkIptablesExistsAsync(callback);
+                            }
+
+                            @Override
+                            protected boolean isPassed(Boolean result)
+                            {
+                                return result != null && result;
+                            }
+
+                            @Override
+                            protected void handle(Boolean result, boolean success, Throwable error)
+                            {
+                                logCallback(result, success, error, true);
+                                final boolean _success = success && result != null;
+                                if (_success) advanceStep();
+                                else
+                                {
+                                    //error
+                                    Integer errorText = null;
+                                    if (result != null && !result)
+                                    {
+                                        errorText = R.string.error_iptables_not_found;
+                                        reportState("iptables_not_found", "true");
+                                    }
+                                    if (error != null && error instanceof IOException)
+                                        errorText = R.string.error_io;
+                                    error(errorText);
+                                }
+                            }
+                        }),
+
+                        new Step(R.string.step_clamp_mss, new Runnable()
+                        {
+                            @Override
+                            public void run()
+                            {
+                                log("Step 4: clamp TCP MSS...");
+                                Fixer.clampMssAsync(new Async.SimpleMainThreadCallback<Void>()
                                 {
                                     @Override
-                                    public void mainThreadCallback(Boolean result, boolean success, Throwable error)
+                                    public void mainThreadCallback(Void result, boolean success, Throwable error)
                                     {
-                                        logCallback(result, success, error, true);
-                                        final boolean _success = success && result != null;
-                                        if (_success) advanceStep();
+                                        logCallback(result, success, error, false);
+                                        if (success) advanceStep();
                                         else
                                         {
                                             //error
-                                            Integer errorText = null;
-                                            if (result != null && !result)
-                                            {
-                                                errorText = R.string.error_iptables_not_found;
-                                                reportState("iptables_not_found", "true");
-                                            }
+                                            Integer errorText = R.string.error_mss_clamping;
                                             if (error != null && error instanceof IOException)
                                                 errorText = R.string.error_io;
                                             error(errorText);
@@ -179,28 +219,23 @@ public final class Steps
                             }
                         }),
 
-                        new Step(R.string.step_check_fix, new Runnable()
+                        new Step(R.string.step_low_latency, new Runnable()
                         {
                             @Override
                             public void run()
                             {
-                                log("Step 4: check already fixed...");
-                                Fixer.checkFixAsync(new Async.SimpleMainThreadCallback<Boolean>()
+                                log("Step 5: apply low latency mode...");
+                                Fixer.applyLowLatencyAsync(new Async.SimpleMainThreadCallback<Void>()
                                 {
                                     @Override
-                                    public void mainThreadCallback(Boolean result, boolean success, Throwable error)
+                                    public void mainThreadCallback(Void result, boolean success, Throwable error)
                                     {
-                                        logCallback(result, success, error, true);
-                                        final boolean _success = success && result != null;
-                                        if (_success)
-                                        {
-                                            if (result) success(); // already fixed!
-                                            else advanceStep();
-                                        }
+                                        logCallback(result, success, error, false);
+                                        if (success) advanceStep();
                                         else
                                         {
                                             //error
-                                            Integer errorText = null;
+                                            Integer errorText = R.string.error_low_latency;
                                             if (error != null && error instanceof IOException)
                                                 errorText = R.string.error_io;
                                             error(errorText);
@@ -210,19 +245,59 @@ public final class Steps
                             }
                         }),
 
+                        new Step(R.string.step_check_fix, new Probe<Boolean>(1, 2, 3, 4)
+                        {
+                            @Override
+                            protected void start(Async.Callback<Boolean> callback)
+                            {
+                                log("Step 6: check already fixed...");
+                                Fixer.checkFixAsync(callback);
+                            }
+
+                            @Override
+                            protected boolean isPassed(Boolean result)
+                            {
+                                return true; // nothing depends on it
+                            }
+
+                            @Override
+                            protected void handle(Boolean result, boolean success, Throwable error)
+                            {
+                                logCallback(result, success, error, true);
+                                final boolean _success = success && result != null;
+                                if (_success)
+                                {
+                                    if (result) success(); // already fixed!
+                                    else advanceStep();
+                                }
+                                else
+                                {
+                                    //error
+                                    Integer errorText = null;
+                                    if (error != null && error instanceof IOException)
+                                        errorText = R.string.error_io;
+                                    error(errorText);
+                                }
+                            }
+                        }),
+
                         new Step(R.string.step_apply_fix, new Runnable()
                         {
                             @Override
                             public void run()
                             {
-                                log("Step 5: apply fix...");
+                                log("Step 7: apply fix...");
                                 Fixer.fixAsync(new Async.SimpleMainThreadCallback<Void>()
                                 {
                                     @Override
                                     public void mainThreadCallback(Void result, boolean success, Throwable error)
                                     {
                                         logCallback(result, success, error, false);
-                                        if (success) success(); // fixed!
+                                        if (success)
+                                        {
+                                            if (Fixer.isFlushFlowsEnabled()) flushFlows();
+                                            else success(); // fixed!
+                                        }
                                         else
                                         {
                                             //error
@@ -295,6 +370,23 @@ public final class Steps
         else retry();
     }
 
+    /**
+     * Optional end of the fix step: the fix is in place whatever happens here, so failures are only logged.
+     */
+    private static void flushFlows()
+    {
+        log("Step 7: flush tethered flows...");
+        Fixer.flushTetheredFlowsAsync(new Async.SimpleMainThreadCallback<ConntrackFlush.Result>()
+        {
+            @Override
+            public void mainThreadCallback(ConntrackFlush.Result result, boolean success, Throwable error)
+            {
+                logCallback(result, success, error, false);
+                success(); // fixed!
+            }
+        }, NetworkBroadcastReceiver.getTetheredInterfaces());
+    }
+
     private static void error(final Integer errorText)
     {
         log(String.format("Error! (%d)", getCurrentStep()));
@@ -306,6 +398,8 @@ public final class Steps
     private static void advanceStep(boolean delay)
     {
         log(String.format("Advancing! delay: %b (%d)", delay, getCurrentStep() + 1));
+        PASSED_STEP_INDEX = getCurrentStep();
+        launchProbes();
         pendingAction = ACTION_ADVANCE;
         executePendingAction(delay);
     }
@@ -369,6 +463,8 @@ public final class Steps
             case ACTION_RETRY:
             {
                 HANDLER.removeCallbacks(pendingActionWrapper);
+                resetProbes();
+                PASSED_STEP_INDEX = -1;
                 setCurrentStep(-1);
                 setErrorText(null);
                 setError(false);
@@ -492,6 +588,14 @@ public final class Steps
         return STEPS.length;
     }
 
+    /**
+     * @return whether succeeding at the step means that the fix was applied, rather than found already there
+     */
+    public static boolean isFixStep(int index)
+    {
+        return index == STEPS.length - 1;
+    }
+
     public static List<String> getLabels()
     {
         return LABELS;
@@ -604,21 +708,163 @@ public final class Steps
         public void onStepsSuccess(int itemIndex);
     }
 
+    /**
+     * Starts every probe that isn't running yet and whose dependencies have all passed, without waiting for its turn.
+     */
+    private static void launchProbes()
+    {
+        for (Step step : STEPS)
+        {
+            final Probe<?> probe = step.probe;
+            if (probe == null || probe.isLaunched()) continue;
+            boolean ready = true;
+            for (int dependency : probe.dependencies) ready &= isPassed(dependency);
+            if (ready) probe.launch();
+        }
+    }
+
+    /**
+     * A probe has passed as soon as its outcome allows it, any other step only once it has asked to advance.
+     */
+    private static boolean isPassed(int index)
+    {
+        final Probe<?> probe = STEPS[index].probe;
+        return probe != null ? probe.isPassed() : index <= PASSED_STEP_INDEX;
+    }
+
+    private static void resetProbes()
+    {
+        for (Step step : STEPS) if (step.probe != null) step.probe.reset();
+    }
+
     private static class Step implements Runnable
     {
         public final int      labelId;
         public final Runnable action;
+        public final Probe<?> probe;
 
         public Step(int labelId, Runnable action)
         {
             this.labelId = labelId;
             this.action = action;
+            this.probe = null;
+        }
+
+        public Step(int labelId, Probe<?> probe)
+        {
+            this.labelId = labelId;
+            this.action = null;
+            this.probe = probe;
         }
 
         @Override
         public void run()
         {
-            action.run();
+            if (probe != null) probe.turn();
+            else action.run();
+        }
+    }
+
+    /**
+     * A step that only reads state, so it can run as soon as the steps it depends on have passed instead of waiting
+     * for its turn: its outcome is held until then, so the steps are still reported one at a time and in order, but
+     * the work overlaps the previous steps and the pauses between them.
+     * An outcome older than {@link Fixer#CHECK_RESULT_TTL} by its turn is stale, so the probe runs again: the steps
+     * can stay paused for as long as the activity is in the background.
+     * Everything runs on the main thread; outcomes of a run that has since been retried are dropped.
+     */
+    private static abstract class Probe<T>
+    {
+        /** Indexes of earlier steps that must have passed, see {@link #isPassed(int)}. */
+        public final int[] dependencies;
+
+        private int       generation = 0;
+        private boolean   launched   = false;
+        private boolean   done       = false;
+        private boolean   due        = false; // its turn came while still running
+        private long      doneTime;
+        private T         result;
+        private boolean   success;
+        private Throwable error;
+
+        protected Probe(int... dependencies)
+        {
+            this.dependencies = dependencies;
+        }
+
+        /**
+         * Starts the work, which must end up in the callback.
+         */
+        protected abstract void start(Async.Callback<T> callback);
+
+        /**
+         * @return whether the steps depending on this one can start, given a successful result
+         */
+        protected abstract boolean isPassed(T result);
+
+        /**
+         * Called on the step's turn with the outcome of {@link #start}, which must advance the steps or stop them.
+         */
+        protected abstract void handle(T result, boolean success, Throwable error);
+
+        public final boolean isLaunched()
+        {
+            return launched;
+        }
+
+        public final boolean isPassed()
+        {
+            return done && success && isPassed(result);
+        }
+
+        public final void launch()
+        {
+            launched = true;
+            final int launchGeneration = generation;
+            start(new Async.SimpleMainThreadCallback<T>()
+            {
+                @Override
+                public void mainThreadCallback(T result, boolean success, Throwable error)
+                {
+                    if (launchGeneration != generation) return;
+                    Probe.this.result = result;
+                    Probe.this.success = success;
+                    Probe.this.error = error;
+                    doneTime = System.currentTimeMillis();
+                    done = true;
+                    if (due) deliver();
+                    launchProbes();
+                }
+            });
+        }
+
+        /**
+         * The step's turn: hands over the outcome if it's already there, otherwise as soon as it arrives.
+         */
+        public final void turn()
+        {
+            if (done && System.currentTimeMillis() - doneTime >= Fixer.CHECK_RESULT_TTL)
+            {
+                log("Outcome held for too long, running again.");
+                reset();
+            }
+            due = true;
+            if (done) deliver();
+            else if (!launched) launch();
+        }
+
+        private void deliver()
+        {
+            due = false;
+            handle(result, success, error);
+        }
+
+        public final void reset()
+        {
+            generation++;
+            launched = done = due = false;
+            result = null;
+            error = null;
         }
     }
 }
@@ -0,0 +1,182 @@
+/*
+ * The MIT License (MIT)
+ *
+ * Copyright (c) 2014 Eugenio Marletti
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in
+ * all copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN
+ * THE SOFTWARE.
+ */
+
+package me.eugeniomarletti.tetheringfixer.android;
+
+import android.app.Activity;
+import android.content.Context;
+import android.os.Bundle;
+import android.text.format.Formatter;
+import android.view.LayoutInflater;
+import android.view.Menu;
+import android.view.MenuItem;
+import android.view.View;
+import android.view.ViewGroup;
+import android.widget.ArrayAdapter;
+import android.widget.ListView;
+import android.widget.Toast;
+import me.eugeniomarletti.tetheringfixer.Async;
+import me.eugeniomarletti.tetheringfixer.Fixer;
+import me.eugeniomarletti.tetheringfixer.R;
+import me.eugeniomarletti.tetheringfixer.Utils;
+import me.eugeniomarletti.tetheringfixer.netfilter.ClientUsage;
+
+import java.util.List;
+
+/**
+ * Shows how much each tethered client has sent and received, refreshing while visible. Every refresh also adds or
+ * removes the counting rules of the clients that joined or left.
+ */
+public final class ClientsActivity extends Activity
+{
+    private static final int REFRESH_INTERVAL = 2000;
+
+    private ClientsAdapter adapter;
+    private boolean        resumed  = false;
+    private boolean        updating = false;
+    private boolean        stopping = false; // the chain goes once the update in progress, if any, is done
+
+    private final Runnable refresh = new Runnable()
+    {
+        @Override
+        public void run()
+        {
+            update();
+        }
+    };
+
+    private void update()
+    {
+        if (!resumed || updating || stopping) return;
+        updating = true;
+        Fixer.updateClientAccountingAsync(new Async.SimpleMainThreadCallback<List<ClientUsage>>()
+        {
+            @Override
+            public void mainThreadCallback(List<ClientUsage> result, boolean success, Throwable error)
+            {
+                updating = false;
+                if (stopping)
+                {
+                    Fixer.removeClientAccountingAsync(null);
+                    return;
+                }
+                if (!resumed) return;
+                if (success)
+                {
+                    adapter.setNotifyOnChange(false);
+                    adapter.clear();
+                    adapter.addAll(result);
+                    adapter.notifyDataSetChanged();
+                    Utils.MAIN_THREAD_HANDLER.postDelayed(refresh, REFRESH_INTERVAL);
+                }
+                else Toast.makeText(ClientsActivity.this, R.string.clients_error, Toast.LENGTH_LONG).show();
+            }
+        }, NetworkBroadcastReceiver.getTetheredInterfaces());
+    }
+
+    @Override
+    protected void onCreate(Bundle savedInstanceState)
+    {
+        super.onCreate(savedInstanceState);
+        setContentView(R.layout.activity_clients);
+        getActionBar().setDisplayHomeAsUpEnabled(true);
+
+        final ListView list = (ListView)findViewById(android.R.id.list);
+        adapter = new ClientsAdapter(this);
+        list.setAdapter(adapter);
+        list.setEmptyView(findViewById(android.R.id.empty));
+    }
+
+    @Override
+    protected void onResume()
+    {
+        super.onResume();
+
+        resumed = true;
+        NetworkBroadcastReceiver.holdShell();
+        update();
+    }
+
+    @Override
+    protected void onPause()
+    {
+        super.onPause();
+
+        resumed = false;
+        Utils.MAIN_THREAD_HANDLER.removeCallbacks(refresh);
+        NetworkBroadcastReceiver.releaseShell();
+    }
+
+    @Override
+    public boolean onCreateOptionsMenu(Menu menu)
+    {
+        getMenuInflater().inflate(R.menu.activity_clients, menu);
+        return true;
+    }
+
+    @Override
+    public boolean onOptionsItemSelected(MenuItem item)
+    {
+        switch (item.getItemId())
+        {
+            case android.R.id.home:
+                finish();
+                return true;
+            case R.id.action_stop_accounting:
+                // leaving also stops the refresh, which would put the chain back; so would an update still running,
+                // which removes the chain itself when done
+                stopping = true;
+                if (!updating) Fixer.removeClientAccountingAsync(null);
+                finish();
+                return true;
+            default:
+                return super.onOptionsItemSelected(item);
+        }
+    }
+
+    private static final class ClientsAdapter extends ArrayAdapter<ClientUsage>
+    {
+        private final LayoutInflater inflater;
+
+        public ClientsAdapter(Context context)
+        {
+            super(context, R.layout.activity_clients_item);
+            inflater = LayoutInflater.from(context);
+        }
+
+        @Override
+        public View getView(int position, View convertView, ViewGroup parent)
+        {
+            final View view = convertView != null ? convertView
+                                                  : inflater.inflate(R.layout.activity_clients_item, parent, false);
+            final ClientUsage usage = getItem(position);
+            final Context context = getContext();
+            ((TextView)view.findViewById(R.id.client_address)).setText(usage.address);
+            ((TextView)view.findViewById(R.id.client_usage)).setText(
+                    context.getString(R.string.clients_usage, Formatter.formatShortFileSize(context, usage.txBytes),
+                                      Formatter.formatShortFileSize(context, usage.rxBytes)));
+            return view;
+        }
+    }
+}
@@ -0,0 +1,249 @@
+/*
+ * The MIT License (MIT)
+ *
+ * Copyright (c) 2014 Eugenio Marletti
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in
+ * all copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN
+ * THE SOFTWARE.
+ */
+
+package me.eugeniomarletti.tetheringfixer.android;
+
+import android.content.BroadcastReceiver;
+import android.content.Context;
+import android.content.Intent;
+import android.net.ConnectivityManager;
+import android.util.Log;
+import me.eugeniomarletti.tetheringfixer.Async;
+import me.eugeniomarletti.tetheringfixer.Fixer;
+import me.eugeniomarletti.tetheringfixer.ShellExecutor;
+import me.eugeniomarletti.tetheringfixer.Steps;
+import me.eugeniomarletti.tetheringfixer.Utils;
+import me.eugeniomarletti.tetheringfixer.net.IpMonitor;
+import me.eugeniomarletti.tetheringfixer.net.NetworkEvent;
+import me.eugeniomarletti.tetheringfixer.netfilter.CounterCommand;
+import me.eugeniomarletti.tetheringfixer.stats.TrafficSampler;
+import me.eugeniomarletti.tetheringfixer.watch.ReapplyWatcher;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+
+/**
+ * Feeds tethering and connectivity changes to the {@link ReapplyWatcher}, which runs the steps again when needed.
+ * While tethering, an {@link IpMonitor} (if enabled) reports upstream changes well before the broadcasts do, and a
+ * {@link TrafficSampler} keeps track of the traffic going through the fix, as long as some component holds the root
+ * shell: sampling alone never opens one.
+ */
+public final class NetworkBroadcastReceiver extends BroadcastReceiver
+{
+    private static final String TAG = "NetworkBroadcastReceiver";
+
+    // hidden in ConnectivityManager
+    private static final String ACTION_TETHER_STATE_CHANGED = "android.net.conn.TETHER_STATE_CHANGED";
+    private static final String EXTRA_ACTIVE_TETHER         = "activeArray";
+
+    private static final ReapplyWatcher WATCHER =
+            new ReapplyWatcher(new HandlerScheduler(Utils.MAIN_THREAD_HANDLER), new StepsReapplier());
+
+    private static final IpMonitor MONITOR = new IpMonitor(new IpMonitor.Listener()
+    {
+        @Override
+        public void onNetworkEvent(final NetworkEvent event)
+        {
+            Utils.runOnMainThread(new Runnable()
+            {
+                @Override
+                public void run()
+                {
+                    WATCHER.onNetworkEvent(event);
+                }
+            });
+        }
+    });
+
+    private static final TrafficSampler SAMPLER =
+            new TrafficSampler(new HandlerScheduler(Utils.MAIN_THREAD_HANDLER), new TrafficSampler.Source()
+            {
+                @Override
+                public void read(Async.Callback<CounterCommand> callback)
+                {
+                    Fixer.readFixCountersAsync(callback);
+                }
+            });
+
+    private static volatile boolean      monitorEnabled     = true;
+    // from the last tethering broadcast, null if none was received yet
+    private static volatile List<String> tetheredInterfaces = null;
+    // the components in the foreground (or running, for the service) that keep the root shell open; main thread only
+    private static          int          shellHolders       = 0;
+
+    public static ReapplyWatcher getWatcher()
+    {
+        return WATCHER;
+    }
+
+    public static TrafficSampler getSampler()
+    {
+        return SAMPLER;
+    }
+
+    /**
+     * @return the interfaces the clients are tethered through, empty if not tethering or {@code null} if unknown
+     */
+    public static List<String> getTetheredInterfaces()
+    {
+        return tetheredInterfaces;
+    }
+
+    /**
+     * Called on the main thread once a component starts using the root shell, which allows the sampler to run.
+     */
+    public static void holdShell()
+    {
+        shellHolders++;
+        updateSampler();
+    }
+
+    /**
+     * Called on the main thread once a component that called {@link #holdShell()} is done with the root shell.
+     */
+    public static void releaseShell()
+    {
+        if (shellHolders > 0) shellHolders--;
+        updateSampler();
+    }
+
+    private static void updateSampler()
+    {
+        final List<String> tethered = tetheredInterfaces;
+        if (shellHolders > 0 && tethered != null && !tethered.isEmpty()) SAMPLER.start();
+        else SAMPLER.stop();
+    }
+
+    public static boolean isMonitorEnabled()
+    {
+        return monitorEnabled;
+    }
+
+    public static void setMonitorEnabled(boolean monitorEnabled)
+    {
+        NetworkBroadcastReceiver.monitorEnabled = monitorEnabled;
+        if (!monitorEnabled) setMonitorRunning(false);
+    }
+
+    /**
+     * Starts or stops the monitor off the main thread, as getting a root shell can take a while.
+     */
+    private static void setMonitorRunning(final boolean running)
+    {
+        Fixer.getExecutor().withPriority(ShellExecutor.PRIORITY_LOW).execute(new Runnable()
+        {
+            @Override
+            public void run()
+            {
+                try
+                {
+                    if (running && monitorEnabled) MONITOR.start();
+                    else MONITOR.stop();
+                }
+                catch (Exception e)
+                {
+                    Log.w(TAG, "Can't run ip monitor, disabling it.", e);
+                    monitorEnabled = false;
+                }
+            }
+        });
+    }
+
+    @Override
+    public void onReceive(Context context, Intent intent)
+    {
+        final String action = intent.getAction();
+        if (ACTION_TETHER_STATE_CHANGED.equals(action))
+        {
+            final List<String> active = intent.getStringArrayListExtra(EXTRA_ACTIVE_TETHER);
+            final boolean tethering = active != null && !active.isEmpty();
+            tetheredInterfaces = active == null ? Collections.<String>emptyList()
+                                                : Collections.unmodifiableList(new ArrayList<>(active));
+            WATCHER.onTetherStateChanged(tethering);
+            if (monitorEnabled) setMonitorRunning(tethering);
+            updateSampler();
+        }
+        else if (ConnectivityManager.CONNECTIVITY_ACTION.equals(action)) WATCHER.onConnectivityChanged();
+        if (Application.isDebug())
+        {
+            Log.d(TAG, WATCHER.toString());
+            Log.d(TAG, SAMPLER.toString());
+        }
+    }
+
+    /**
+     * Runs the steps through {@link StepsService}, which stop at the check if the fix is still there.
+     * If they're already going, it waits for them instead: they can't be started again until they're over.
+     */
+    private static final class StepsReapplier implements ReapplyWatcher.Reapplier, Steps.StepListListener
+    {
+        // also keeps this listener from being collected
+        private Async.Callback<Boolean> callback = null;
+
+        @Override
+        public void reapply(Async.Callback<Boolean> callback)
+        {
+            this.callback = callback;
+            Steps.addListener(this);
+            if (Steps.isStarted() && !Steps.isError() && !Steps.isSuccess()) Log.d(TAG, "Steps already going.");
+            else StepsService.start(true);
+        }
+
+        private void finish(Boolean fixed, boolean success)
+        {
+            Steps.removeListener(this);
+            final Async.Callback<Boolean> callback = this.callback;
+            this.callback = null;
+            Async.returnCallback(callback, fixed, success, null);
+        }
+
+        @Override
+        public void onStepsSuccess(int itemIndex)
+        {
+            finish(Steps.isFixStep(itemIndex), true);
+        }
+
+        @Override
+        public void onStepError(int itemIndex, String errorText)
+        {
+            finish(null, false);
+        }
+
+        @Override
+        public void onStepsStart()
+        {
+        }
+
+        @Override
+        public void onStepsRetry()
+        {
+        }
+
+        @Override
+        public void onAdvanceStep(int itemIndex)
+        {
+        }
+    }
+}
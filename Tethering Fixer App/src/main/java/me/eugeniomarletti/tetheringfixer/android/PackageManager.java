@@ -29,8 +29,9 @@ import android.content.Context;
 
 public final class PackageManager
 {
-    private static final boolean DEFAULT_BOOT_RECEIVER_ENABLED = true;
-    private static final boolean DEFAULT_STEPS_SERVICE_ENABLED = true;
+    private static final boolean DEFAULT_BOOT_RECEIVER_ENABLED    = true;
+    private static final boolean DEFAULT_STEPS_SERVICE_ENABLED    = true;
+    private static final boolean DEFAULT_NETWORK_RECEIVER_ENABLED = true;
 
     @SuppressWarnings("ConstantConditions")
     public static boolean isBootReceiverEnabled(Context context)
@@ -60,6 +61,34 @@ public final class PackageManager
         return bootReceiverComponentName;
     }
 
+    @SuppressWarnings("ConstantConditions")
+    public static boolean isNetworkReceiverEnabled(Context context)
+    {
+        final int enabled =
+                context.getPackageManager().getComponentEnabledSetting(getNetworkReceiverComponentName(context));
+        return enabled == android.content.pm.PackageManager.COMPONENT_ENABLED_STATE_DEFAULT
+                || enabled == android.content.pm.PackageManager.COMPONENT_ENABLED_STATE_ENABLED;
+    }
+
+    @SuppressWarnings("ConstantConditions")
+    public static void setNetworkReceiverEnabled(Context context, boolean enabled)
+    {
+        context.getPackageManager().setComponentEnabledSetting(
+                getNetworkReceiverComponentName(context),
+                enabled ? android.content.pm.PackageManager.COMPONENT_ENABLED_STATE_ENABLED
+                        : android.content.pm.PackageManager.COMPONENT_ENABLED_STATE_DEFAULT,
+                android.content.pm.PackageManager.DONT_KILL_APP);
+    }
+
+    private static ComponentName networkReceiverComponentName = null;
+
+    private static ComponentName getNetworkReceiverComponentName(Context context)
+    {
+        if (networkReceiverComponentName == null)
+            networkReceiverComponentName = new ComponentName(context, NetworkBroadcastReceiver.class);
+        return networkReceiverComponentName;
+    }
+
     @SuppressWarnings("ConstantConditions")
     public static boolean isStepsServiceEnabled(Context context)
     {
@@ -27,12 +27,15 @@ package me.eugeniomarletti.tetheringfixer.android;
 import android.animation.Animator;
 import android.app.ActionBar;
 import android.app.Activity;
+import android.content.Intent;
 import android.content.res.Configuration;
 import android.graphics.Point;
 import android.graphics.PointF;
 import android.graphics.drawable.Drawable;
 import android.os.Bundle;
 import android.view.LayoutInflater;
+import android.view.Menu;
+import android.view.MenuItem;
 import android.view.View;
 import android.view.ViewGroup;
 import android.view.ViewTreeObserver;
@@ -425,6 +428,7 @@ public final class StepsActivity extends Activity implements Steps.StepListListe
 
         Steps.setActionsDelayed(true);
         Steps.resume();
+        NetworkBroadcastReceiver.holdShell();
     }
 
     @Override
@@ -434,6 +438,7 @@ public final class StepsActivity extends Activity implements Steps.StepListListe
 
         Steps.pause();
         Steps.setActionsDelayed(false);
+        NetworkBroadcastReceiver.releaseShell();
     }
 
     @Override
@@ -453,6 +458,60 @@ public final class StepsActivity extends Activity implements Steps.StepListListe
         Steps.shutdownIfNoListeners();
     }
 
+    @Override
+    public boolean onCreateOptionsMenu(Menu menu)
+    {
+        getMenuInflater().inflate(R.menu.activity_fixer, menu);
+        final int strategies = Fixer.getStrategies();
+        menu.findItem(R.id.action_strategy_masquerade).setChecked((strategies & Fixer.STRATEGY_MASQUERADE) != 0);
+        menu.findItem(R.id.action_strategy_ttl).setChecked((strategies & Fixer.STRATEGY_TTL) != 0);
+        menu.findItem(R.id.action_mss_clamping).setChecked(Fixer.isMssClampingEnabled());
+        menu.findItem(R.id.action_low_latency)
+                .setChecked(Fixer.isLowLatencyEnabled())
+                .setEnabled(Fixer.isLowLatencySupported());
+        return true;
+    }
+
+    @Override
+    public boolean onOptionsItemSelected(MenuItem item)
+    {
+        switch (item.getItemId())
+        {
+            case R.id.action_clients:
+                startActivity(new Intent(this, ClientsActivity.class));
+                return true;
+            case R.id.action_strategy_masquerade:
+                toggleStrategy(item, Fixer.STRATEGY_MASQUERADE);
+                return true;
+            case R.id.action_strategy_ttl:
+                toggleStrategy(item, Fixer.STRATEGY_TTL);
+                return true;
+            case R.id.action_mss_clamping:
+                final boolean mssClamping = !item.isChecked();
+                item.setChecked(mssClamping);
+                Fixer.setMssClampingEnabled(mssClamping);
+                return true;
+            case R.id.action_low_latency:
+                final boolean lowLatency = !item.isChecked();
+                item.setChecked(lowLatency);
+                Fixer.setLowLatencyEnabled(lowLatency);
+                return true;
+            default:
+                return super.onOptionsItemSelected(item);
+        }
+    }
+
+    /**
+     * Takes effect the next time the steps run. The last strategy left can't be turned off.
+     */
+    private static void toggleStrategy(MenuItem item, int strategy)
+    {
+        final int strategies = Fixer.getStrategies() ^ strategy;
+        if (strategies == 0) return;
+        item.setChecked((strategies & strategy) != 0);
+        Fixer.setStrategies(strategies);
+    }
+
     @Override
     public void onStepsStart()
     {
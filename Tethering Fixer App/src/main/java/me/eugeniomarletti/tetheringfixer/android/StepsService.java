@@ -43,14 +43,22 @@ public final class StepsService extends Service implements Steps.StepListListene
 
     public static final int NOTIFICATION_ID = 0;
 
+    // run the steps again even if they already succeeded, as the fix might have been undone since
+    private static final String EXTRA_REAPPLY = "reapply";
+
     private static NotificationManager       notificationManager;
     private static Notification.Builder      notificationBuilder;
     private static Notification.BigTextStyle notificationStyle;
 
-    public static ComponentName start()
+    public static ComponentName start(boolean reapply)
     {
         final Context context = Application.getInstance();
-        return context.startService(new Intent(context, StepsService.class));
+        return context.startService(new Intent(context, StepsService.class).putExtra(EXTRA_REAPPLY, reapply));
+    }
+
+    public static ComponentName start()
+    {
+        return start(false);
     }
 
     public static boolean stop()
@@ -94,12 +102,14 @@ public final class StepsService extends Service implements Steps.StepListListene
                 .setContentIntent(activity);
         notificationStyle = new Notification.BigTextStyle(notificationBuilder)
                 .setSummaryText("");
+        NetworkBroadcastReceiver.holdShell();
     }
 
     @Override
     public int onStartCommand(Intent intent, int flags, int startId)
     {
-        if (Steps.isSuccess())
+        final boolean reapply = intent != null && intent.getBooleanExtra(EXTRA_REAPPLY, false);
+        if (Steps.isSuccess() && !reapply)
         {
             onStepsSuccess(-1);
             return Service.START_NOT_STICKY;
@@ -114,6 +124,7 @@ public final class StepsService extends Service implements Steps.StepListListene
     {
         super.onDestroy();
 
+        NetworkBroadcastReceiver.releaseShell();
         Steps.removeListener(this);
         Steps.shutdownIfNoListeners();
         notificationManager = null;
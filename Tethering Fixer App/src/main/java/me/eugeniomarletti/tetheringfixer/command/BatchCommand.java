@@ -0,0 +1,160 @@
+/*
+ * The MIT License (MIT)
+ *
+ * Copyright (c) 2014 Eugenio Marletti
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in
+ * all copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN
+ * THE SOFTWARE.
+ */
+
+package me.eugeniomarletti.tetheringfixer.command;
+
+/**
+ * Runs several commands with a single write to the shell, instead of waiting for each one to finish before
+ * sending the next.
+ * The output of every command is followed by a marker line carrying its index and exit code, which is then used to
+ * split the output back into one {@link CommandResult} per command.
+ */
+public class BatchCommand extends WaitCommand
+{
+    // unique per process, so that the markers can't be confused with the output of a previous batch
+    private static final String MARKER_SALT = Long.toHexString(System.nanoTime());
+
+    private final String          marker;
+    private final CommandResult[] results;
+    private final long[]          completionTimes;
+    private final StringBuilder   currentOutput = new StringBuilder();
+    private       int             currentIndex  = 0;
+
+    public BatchCommand(String... commands)
+    {
+        this(getNextId(), commands);
+    }
+
+    private BatchCommand(int id, String... commands)
+    {
+        super(id, getScript(getMarker(id), commands));
+        this.marker = getMarker(id);
+        this.results = new CommandResult[commands.length];
+        this.completionTimes = new long[commands.length];
+    }
+
+    private static String getMarker(int id)
+    {
+        return String.format("TF@BATCH#%s:%d:", MARKER_SALT, id);
+    }
+
+    private static String[] getScript(String marker, String... commands)
+    {
+        final String[] script = new String[commands.length];
+        for (int i = 0; i < commands.length; i++)
+            script[i] = String.format("%s\necho \"%s%d $?\"", commands[i], marker, i);
+        return script;
+    }
+
+    public int size()
+    {
+        return results.length;
+    }
+
+    @Override
+    public synchronized void commandOutput(int id, String s)
+    {
+        final int markerIndex = s == null ? -1 : s.indexOf(marker);
+        if (markerIndex < 0)
+        {
+            if (currentIndex < results.length) batchOutput(currentIndex, s);
+            return;
+        }
+        // output without a trailing newline ends up on the same line as the marker
+        if (markerIndex > 0 && currentIndex < results.length) batchOutput(currentIndex, s.substring(0, markerIndex));
+        commandInBatchCompleted(s.substring(markerIndex));
+    }
+
+    /**
+     * Called for every line printed by the command at the given index; by default it ends up in its result.
+     */
+    protected void batchOutput(int index, String line)
+    {
+        currentOutput.append(line).append('\n');
+    }
+
+    private void commandInBatchCompleted(String markerLine)
+    {
+        final int separator = markerLine.indexOf(' ', marker.length());
+        if (separator < 0 || currentIndex >= results.length) return; // not ours
+        int exitcode;
+        try
+        {
+            exitcode = Integer.parseInt(markerLine.substring(separator + 1).trim());
+        }
+        catch (NumberFormatException e)
+        {
+            exitcode = -1;
+        }
+        completionTimes[currentIndex] = System.nanoTime();
+        results[currentIndex++] = new CommandResult(id, exitcode, false, null, currentOutput.toString());
+        currentOutput.setLength(0);
+    }
+
+    @Override
+    protected void commandCompletedOrTerminated(int id, int exitcode, boolean terminated, String terminatedReason)
+    {
+        synchronized (this)
+        {
+            if (isDone()) return;
+            // whatever didn't get to print its marker never completed
+            if (currentIndex < results.length) fillMissingResults(id, exitcode, terminatedReason);
+        }
+        super.commandCompletedOrTerminated(id, exitcode, terminated, terminatedReason);
+    }
+
+    private void fillMissingResults(int id, int exitcode, String terminatedReason)
+    {
+        final String reason = terminatedReason != null ? terminatedReason
+                                                       : String.format("Batch ended after %d of %d commands.",
+                                                                       currentIndex, results.length);
+        results[currentIndex] = new CommandResult(id, exitcode, true, reason, currentOutput.toString());
+        for (int i = currentIndex + 1; i < results.length; i++)
+            results[i] = new CommandResult(id, -1, true, reason, null);
+        currentOutput.setLength(0);
+    }
+
+    /**
+     * @return one result for each command, in the same order they were given; {@code null} until finished
+     */
+    public CommandResult[] getResults()
+    {
+        return getResult() == null ? null : results.clone();
+    }
+
+    /**
+     * @return the {@link System#nanoTime()} at which the marker of the command at the index was read, so the time
+     *         between two is how long the second one took; 0 if it never completed
+     */
+    public synchronized long getCompletionTime(int index)
+    {
+        return completionTimes[index];
+    }
+
+    public CommandResult[] waitForResults()
+    {
+        waitForFinish();
+        return getResults();
+    }
+}
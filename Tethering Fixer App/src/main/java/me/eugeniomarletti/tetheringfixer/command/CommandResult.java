@@ -30,12 +30,19 @@ public final class CommandResult
     public final int     exitcode;
     public final boolean terminated;
     public final String  terminatedReason;
+    public final String  output;
 
-    public CommandResult(int id, int exitcode, boolean terminated, String terminatedReason)
+    public CommandResult(int id, int exitcode, boolean terminated, String terminatedReason, String output)
     {
         this.id = id;
         this.exitcode = exitcode;
         this.terminated = terminated;
         this.terminatedReason = terminatedReason;
+        this.output = output;
+    }
+
+    public CommandResult(int id, int exitcode, boolean terminated, String terminatedReason)
+    {
+        this(id, exitcode, terminated, terminatedReason, null);
     }
 }
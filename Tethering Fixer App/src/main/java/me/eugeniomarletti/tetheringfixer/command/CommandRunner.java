@@ -0,0 +1,131 @@
+/*
+ * The MIT License (MIT)
+ *
+ * Copyright (c) 2014 Eugenio Marletti
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in
+ * all copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN
+ * THE SOFTWARE.
+ */
+
+package me.eugeniomarletti.tetheringfixer.command;
+
+import me.eugeniomarletti.tetheringfixer.Async;
+
+import java.io.IOException;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Runs commands on the current {@link ShellBackend}, turning "not found" and terminated commands into exceptions.
+ */
+public final class CommandRunner
+{
+    private volatile ShellBackend shell;
+
+    public CommandRunner(ShellBackend shell)
+    {
+        setShell(shell);
+    }
+
+    public ShellBackend getShell()
+    {
+        return shell;
+    }
+
+    public void setShell(ShellBackend shell)
+    {
+        if (shell == null) throw new NullPointerException("Shell backend can't be null.");
+        this.shell = shell;
+    }
+
+    public ShellBackend getOpenShell()
+    {
+        final ShellBackend shell = this.shell;
+        if (!shell.isOpen()) throw new NullPointerException("Must start a shell before adding a command.");
+        return shell;
+    }
+
+    private static void check(CommandResult result) throws CommandException
+    {
+        CommandNotFoundException.throwIfNotFound(result);
+        if (result.terminated) throw new CommandException(result);
+    }
+
+    /**
+     * Runs the command and waits for it, whatever its type.
+     */
+    public CommandResult run(WaitCommand command) throws IOException, CommandException
+    {
+        getOpenShell().add(command);
+        final CommandResult result = command.waitForFinish();
+        check(result);
+        return result;
+    }
+
+    public CommandResult run(String command) throws IOException, CommandException
+    {
+        return run(new WaitCommand(command));
+    }
+
+    /**
+     * Sends all the commands of the batch to the shell in one go and waits for them together, paying a single
+     * round-trip.
+     * Unlike {@link #run(WaitCommand)}, a single command not found doesn't throw: every result has to be checked.
+     *
+     * @return the results in the same order as the commands
+     */
+    public CommandResult[] runAll(BatchCommand command) throws IOException, CommandException
+    {
+        getOpenShell().add(command);
+        final CommandResult[] results = command.waitForResults();
+        for (CommandResult result : results)
+            if (result.terminated) throw new CommandException(result);
+        return results;
+    }
+
+    /**
+     * Adds the command to the shell and returns right away: the callback is chained to its completion, so no thread is
+     * kept waiting for it.
+     */
+    public void runAsync(WaitCommand cmd, long deadline, final Async.Callback<CommandResult> callback)
+    {
+        try
+        {
+            cmd.setDeadline(deadline, TimeUnit.MILLISECONDS);
+            cmd.whenFinished(new Async.Callback<CommandResult>()
+            {
+                @Override
+                public void callback(CommandResult result, boolean success, Throwable error)
+                {
+                    if (success && result.exitcode == CommandNotFoundException.RETURN_CODE_COMMAND_NOT_FOUND)
+                        Async.returnCallback(callback, result, false, new CommandNotFoundException(result));
+                    else Async.returnCallback(callback, result, success, error);
+                }
+            });
+            getOpenShell().add(cmd);
+        }
+        catch (Throwable e)
+        {
+            Async.returnCallback(callback, null, false, e);
+        }
+    }
+
+    public void runAsync(String command, long deadline, Async.Callback<CommandResult> callback)
+    {
+        runAsync(new WaitCommand(command), deadline, callback);
+    }
+}
@@ -0,0 +1,245 @@
+/*
+ * The MIT License (MIT)
+ *
+ * Copyright (c) 2014 Eugenio Marletti
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in
+ * all copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN
+ * THE SOFTWARE.
+ */
+
+package me.eugeniomarletti.tetheringfixer.command;
+
+import com.stericson.RootTools.RootTools;
+
+import java.io.BufferedReader;
+import java.io.File;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.InputStreamReader;
+import java.io.OutputStreamWriter;
+import java.io.Writer;
+import java.util.ArrayDeque;
+import java.util.Map;
+import java.util.Queue;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Runs commands in a plain {@code sh} process through {@link ProcessBuilder}, using the same protocol as RootTools:
+ * every command is followed by an echo of a token, its id and its exit code.
+ * Doesn't need root nor Android, so the command layer can be run and measured on any Linux box; pointing
+ * {@code binDirectory} to a folder of scripts (e.g. a fake {@code iptables}) lets them stand in for the real binaries.
+ */
+public final class ProcessShellBackend implements ShellBackend
+{
+    private static final String TOKEN = "TF@PROCESS#END";
+
+    public final String shell;
+    public final File   binDirectory;
+
+    // all replaced on every start, so that a dying process can't touch the commands of the next one
+    private Process            process = null;
+    private Writer             input   = null;
+    private Queue<WaitCommand> pending = null;
+
+    /**
+     * @param shell        usually {@code /bin/sh}
+     * @param binDirectory prepended to {@code PATH}, can be null
+     */
+    public ProcessShellBackend(String shell, File binDirectory)
+    {
+        this.shell = shell;
+        this.binDirectory = binDirectory;
+    }
+
+    public ProcessShellBackend()
+    {
+        this("/bin/sh", null);
+    }
+
+    @Override
+    public boolean isAvailable()
+    {
+        return new File(shell).canExecute();
+    }
+
+    @Override
+    public synchronized void start() throws IOException
+    {
+        if (isOpen()) return;
+        final ProcessBuilder builder = new ProcessBuilder(shell);
+        if (binDirectory != null)
+        {
+            final Map<String, String> environment = builder.environment();
+            final String path = environment.get("PATH");
+            environment.put("PATH", binDirectory.getAbsolutePath() + (path == null ? "" : File.pathSeparator + path));
+        }
+        final Process process = builder.start();
+        final Queue<WaitCommand> pending = new ArrayDeque<>();
+        this.process = process;
+        this.pending = pending;
+        input = new OutputStreamWriter(process.getOutputStream(), "UTF-8");
+        startThread("Shell Output", new Runnable()
+        {
+            @Override
+            public void run()
+            {
+                readOutput(process, pending);
+            }
+        });
+        startThread("Shell Error", new Runnable()
+        {
+            @Override
+            public void run()
+            {
+                drain(process.getErrorStream());
+            }
+        });
+    }
+
+    private static void startThread(String name, Runnable runnable)
+    {
+        final Thread thread = new Thread(runnable, name);
+        thread.setDaemon(true);
+        thread.start();
+    }
+
+    @Override
+    public synchronized boolean isOpen()
+    {
+        return process != null;
+    }
+
+    @Override
+    public void add(WaitCommand command) throws IOException
+    {
+        synchronized (this)
+        {
+            if (!isOpen()) throw new IOException("Shell not open.");
+            pending.add(command);
+            input.write(command.getCommand());
+            input.write(String.format("\necho %s %d $?\n", TOKEN, command.id));
+            input.flush();
+        }
+        // the shell can't be interrupted, so the timeout only stops waiting for the command
+        if (command.getTimeout() > 0) command.setDeadline(command.getTimeout(), TimeUnit.MILLISECONDS);
+    }
+
+    private void readOutput(Process process, Queue<WaitCommand> pending)
+    {
+        final BufferedReader reader;
+        try
+        {
+            reader = new BufferedReader(new InputStreamReader(process.getInputStream(), "UTF-8"));
+            String line;
+            while ((line = reader.readLine()) != null)
+            {
+                final int tokenIndex = line.indexOf(TOKEN);
+                final WaitCommand command;
+                synchronized (this)
+                {
+                    command = tokenIndex < 0 ? pending.peek() : pending.poll();
+                }
+                if (command == null) continue;
+
+                if (tokenIndex < 0) command.commandOutput(command.id, line);
+                else
+                {
+                    if (tokenIndex > 0) command.commandOutput(command.id, line.substring(0, tokenIndex));
+                    command.commandCompleted(command.id, parseExitCode(line, tokenIndex + TOKEN.length()));
+                }
+            }
+        }
+        catch (IOException e)
+        {
+            RootTools.log("Error reading shell output", WaitCommand.LOG_TYPE_DEBUG, e);
+        }
+        terminatePending(process, pending, "Shell closed");
+    }
+
+    private static int parseExitCode(String line, int start)
+    {
+        final String[] fields = line.substring(start).trim().split(" ");
+        try
+        {
+            return Integer.parseInt(fields[fields.length - 1]);
+        }
+        catch (NumberFormatException e)
+        {
+            return -1;
+        }
+    }
+
+    private static void drain(InputStream stream)
+    {
+        final byte[] buffer = new byte[1024];
+        try
+        {
+            //noinspection StatementWithEmptyBody
+            while (stream.read(buffer) >= 0) ;
+        }
+        catch (IOException ignore)
+        {
+        }
+    }
+
+    private void terminatePending(Process process, Queue<WaitCommand> pending, String reason)
+    {
+        while (true)
+        {
+            final WaitCommand command;
+            synchronized (this)
+            {
+                if (this.process == process)
+                {
+                    this.process = null;
+                    this.input = null;
+                    this.pending = null;
+                }
+                command = pending.poll();
+            }
+            if (command == null) return;
+            command.commandTerminated(command.id, reason);
+        }
+    }
+
+    @Override
+    public void close() throws IOException
+    {
+        final Process process;
+        final Queue<WaitCommand> pending;
+        synchronized (this)
+        {
+            process = this.process;
+            pending = this.pending;
+            if (process == null) return;
+            try
+            {
+                input.write("\nexit 0\n");
+                input.flush();
+            }
+            catch (IOException ignore)
+            {
+            }
+            this.process = null;
+            this.input = null;
+            this.pending = null;
+        }
+        process.destroy();
+        terminatePending(process, pending, "Shell closed");
+    }
+}
@@ -0,0 +1,156 @@
+/*
+ * The MIT License (MIT)
+ *
+ * Copyright (c) 2014 Eugenio Marletti
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in
+ * all copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN
+ * THE SOFTWARE.
+ */
+
+package me.eugeniomarletti.tetheringfixer.command;
+
+import com.stericson.RootTools.RootTools;
+import com.stericson.RootTools.exceptions.RootDeniedException;
+import com.stericson.RootTools.execution.Command;
+import com.stericson.RootTools.execution.Shell;
+
+import java.io.IOException;
+import java.lang.reflect.Field;
+import java.util.concurrent.TimeoutException;
+
+/**
+ * Runs commands in the RootTools root shell, which is shared by the whole process.
+ */
+public final class RootToolsShellBackend implements ShellBackend
+{
+    private static final Field timeout;
+
+    public final int startTimeout;
+    public final int startRetries;
+
+    static
+    {
+        final String timeoutFieldName = "timeout";
+        Field _timeout;
+        try
+        {
+            _timeout = Command.class.getDeclaredField(timeoutFieldName);
+            _timeout.setAccessible(true);
+        }
+        catch (NoSuchFieldException e)
+        {
+            _timeout = null;
+            RootTools.log(String.format("WARNING! Field '%s' not found in super class.", timeoutFieldName),
+                          WaitCommand.LOG_TYPE_DEBUG, e);
+        }
+        timeout = _timeout;
+    }
+
+    public RootToolsShellBackend(int startTimeout, int startRetries)
+    {
+        this.startTimeout = startTimeout;
+        this.startRetries = startRetries;
+    }
+
+    @Override
+    public boolean isAvailable()
+    {
+        return RootTools.isRootAvailable();
+    }
+
+    @Override
+    public void start() throws IOException, TimeoutException, RootDeniedException
+    {
+        Shell.startRootShell(startTimeout, startRetries);
+    }
+
+    @Override
+    public boolean isOpen()
+    {
+        return Shell.getOpenShell() != null;
+    }
+
+    @Override
+    public void add(WaitCommand command) throws IOException
+    {
+        final Shell shell = Shell.getOpenShell();
+        if (shell == null) throw new IOException("Shell not open.");
+        shell.add(new RootToolsCommand(command));
+    }
+
+    @Override
+    public void close() throws IOException
+    {
+        Shell.closeAll();
+    }
+
+    /**
+     * Forwards everything to the wrapped {@link WaitCommand}.
+     */
+    private static final class RootToolsCommand extends Command
+    {
+        private final WaitCommand command;
+
+        public RootToolsCommand(WaitCommand command)
+        {
+            super(command.id, false, command.getCommandLines());
+            this.command = command;
+            setTimeout(command.getTimeout());
+        }
+
+        private void setTimeout(int timeout)
+        {
+            if (RootToolsShellBackend.timeout != null)
+            {
+                try
+                {
+                    RootToolsShellBackend.timeout.setInt(this, timeout);
+                }
+                catch (IllegalAccessException ignore)
+                {
+                }
+            }
+        }
+
+        @Override
+        protected void startExecution()
+        {
+            if (command.isFinished())
+                throw new RuntimeException(String.format("Can't start finished command (id: %d).", command.id));
+            super.startExecution();
+        }
+
+        @Override
+        public void commandOutput(int id, String s)
+        {
+            command.commandOutput(id, s);
+        }
+
+        @Override
+        public void commandTerminated(int id, String reason)
+        {
+            command.commandTerminated(id, reason);
+        }
+
+        @Override
+        public void commandCompleted(int id, int exitcode)
+        {
+            command.commandCompleted(id, exitcode);
+        }
+    }
+}
@@ -25,73 +25,65 @@
 package me.eugeniomarletti.tetheringfixer.command;
 
 import com.stericson.RootTools.RootTools;
-import com.stericson.RootTools.execution.Command;
+import me.eugeniomarletti.tetheringfixer.Async;
 
-import java.lang.reflect.Field;
+import java.util.ArrayList;
+import java.util.List;
 import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.Future;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.ScheduledFuture;
+import java.util.concurrent.ScheduledThreadPoolExecutor;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.TimeoutException;
 
+/**
+ * A command to be run by a {@link ShellBackend}, which reports back through {@link #commandOutput(int, String)},
+ * {@link #commandCompleted(int, int)} and {@link #commandTerminated(int, String)}.
+ * Doesn't depend on any specific shell implementation, so it also works off-device.
+ */
 // don't make final
-public class WaitCommand extends Command
+public class WaitCommand implements Future<CommandResult>
 {
-    private static final int LOG_TYPE_DEBUG = 3;
+    static final int LOG_TYPE_DEBUG = 3;
 
-    private static int lastId = -1;
+    public static final int DEFAULT_TIMEOUT = 20000;
 
-    private static final Field timeout;
+    private static int lastId = -1;
 
     public final int id;
+    private final String[]       command;
+    private       int            timeout   = DEFAULT_TIMEOUT;
     private       CommandResult  result    = null;
     private final StringBuilder  output    = new StringBuilder();
     private final CountDownLatch countdown = new CountDownLatch(1);
 
-    static
-    {
-        final String timeoutFieldName = "timeout";
-        Field _timeout;
-        try
-        {
-            _timeout = Command.class.getDeclaredField(timeoutFieldName);
-            _timeout.setAccessible(true);
-        }
-        catch (NoSuchFieldException e)
-        {
-            _timeout = null;
-            RootTools.log(String.format("WARNING! Field '%s' not found in super class.", timeoutFieldName),
-                          LOG_TYPE_DEBUG, e);
-        }
-        timeout = _timeout;
-    }
+    // continuations to run once finished, null after that
+    private List<Async.Callback<CommandResult>> callbacks = new ArrayList<>(1);
+    private ScheduledFuture<?>                  deadline  = null;
+    private boolean                             cancelled = false;
 
+    private static final String REASON_CANCELLED         = "Cancelled";
+    private static final String REASON_DEADLINE_EXCEEDED = "Deadline exceeded";
+
+    // used by setDeadline()
+    private static ScheduledExecutorService deadlineScheduler = null;
+
+    /**
+     * @return the timeout in milliseconds enforced by the backend, 0 for none
+     */
     public int getTimeout()
     {
-        if (timeout != null)
-        {
-            try
-            {
-                return timeout.getInt(this);
-            }
-            catch (IllegalAccessException ignore)
-            {
-            }
-        }
-        return RootTools.default_Command_Timeout;
+        return timeout;
     }
 
     public void setTimeout(int timeout)
     {
-        if (WaitCommand.timeout != null)
-        {
-            try
-            {
-                WaitCommand.timeout.setInt(this, timeout);
-            }
-            catch (IllegalAccessException ignore)
-            {
-            }
-        }
+        this.timeout = timeout;
     }
 
-    private static synchronized int getNextId()
+    protected static synchronized int getNextId()
     {
         if (lastId == Integer.MAX_VALUE) lastId = -1;
         return ++lastId;
@@ -99,8 +91,8 @@ public class WaitCommand extends Command
 
     public WaitCommand(int id, String... command)
     {
-        super(id, false, command);
         this.id = id;
+        this.command = command;
     }
 
     public WaitCommand(String... command)
@@ -108,24 +100,43 @@ public class WaitCommand extends Command
         this(getNextId(), command);
     }
 
+    /**
+     * @return the lines of the command, as passed to the constructor
+     */
+    public String[] getCommandLines()
+    {
+        return command.clone();
+    }
+
+    /**
+     * @return the full text to be written to the shell
+     */
+    public String getCommand()
+    {
+        final StringBuilder text = new StringBuilder();
+        for (int i = 0; i < command.length; i++)
+        {
+            if (i > 0) text.append('\n');
+            text.append(command[i]);
+        }
+        return text.toString();
+    }
+
+    public boolean isFinished()
+    {
+        return isDone();
+    }
+
     public String getOutput()
     {
         return output.toString();
     }
 
-    @Override
     public void commandOutput(int id, String s)
     {
         output.append(s).append('\n');
     }
 
-    @Override
-    protected void startExecution()
-    {
-        if (isFinished()) throw new RuntimeException(String.format("Can't start finished command (id: %d).", id));
-        super.startExecution();
-    }
-
     public CommandResult getResult()
     {
         return result;
@@ -133,18 +144,98 @@ public class WaitCommand extends Command
 
     protected void commandCompletedOrTerminated(int id, int exitcode, boolean terminated, String terminatedReason)
     {
-        RootTools.log(String.format("Output (id:%d exitcode:%d):\n%s", id, exitcode, getOutput()));
-        result = new CommandResult(id, exitcode, terminated, terminatedReason);
-        countdown.countDown();
+        final List<Async.Callback<CommandResult>> callbacks;
+        synchronized (this)
+        {
+            if (isDone()) return; // already cancelled or past its deadline, the shell is just catching up
+            RootTools.log(String.format("Output (id:%d exitcode:%d):\n%s", id, exitcode, getOutput()));
+            result = new CommandResult(id, exitcode, terminated, terminatedReason, getOutput());
+            countdown.countDown();
+            if (deadline != null) deadline.cancel(false);
+            deadline = null;
+            callbacks = this.callbacks;
+            this.callbacks = null;
+        }
+        for (Async.Callback<CommandResult> callback : callbacks) returnResult(callback, result);
+    }
+
+    private static void returnResult(Async.Callback<CommandResult> callback, CommandResult result)
+    {
+        Async.returnCallback(callback, result, !result.terminated,
+                             result.terminated ? new CommandException(result) : null);
+    }
+
+    /**
+     * Runs the callback as soon as the command finishes (or right away if it already has) without keeping any thread
+     * waiting for it. If it's not a {@link Async.MainThreadCallback} it will run on the thread reading the shell
+     * output, so it should return quickly.
+     * Success means that the command wasn't terminated, regardless of the exit code.
+     */
+    public WaitCommand whenFinished(Async.Callback<CommandResult> callback)
+    {
+        synchronized (this)
+        {
+            if (!isDone())
+            {
+                callbacks.add(callback);
+                return this;
+            }
+        }
+        returnResult(callback, getResult());
+        return this;
+    }
+
+    private static synchronized ScheduledExecutorService getDeadlineScheduler()
+    {
+        if (deadlineScheduler == null)
+        {
+            final ScheduledThreadPoolExecutor scheduler = new ScheduledThreadPoolExecutor(1, new ThreadFactory()
+            {
+                @Override
+                public Thread newThread(Runnable r)
+                {
+                    final Thread thread = new Thread(r, "WaitCommand deadline");
+                    thread.setDaemon(true);
+                    return thread;
+                }
+            });
+            scheduler.setExecuteExistingDelayedTasksAfterShutdownPolicy(false);
+            deadlineScheduler = scheduler;
+        }
+        return deadlineScheduler;
+    }
+
+    /**
+     * Terminates the command if it hasn't finished within the given time, replacing any previous deadline.
+     * Unlike the RootTools timeout, this doesn't close the shell: it only stops waiting for this command.
+     */
+    public synchronized WaitCommand setDeadline(long timeout, TimeUnit unit)
+    {
+        cancelDeadline();
+        if (isDone()) return this;
+        deadline = getDeadlineScheduler().schedule(new Runnable()
+        {
+            @Override
+            public void run()
+            {
+                RootTools.log(String.format("Deadline exceeded for command %d", id));
+                commandTerminated(id, REASON_DEADLINE_EXCEEDED);
+            }
+        }, timeout, unit);
+        return this;
+    }
+
+    public synchronized void cancelDeadline()
+    {
+        if (deadline != null) deadline.cancel(false);
+        deadline = null;
     }
 
-    @Override
     public void commandTerminated(int id, String reason)
     {
-        commandCompletedOrTerminated(id, getExitCode(), true, reason);
+        commandCompletedOrTerminated(id, -1, true, reason);
     }
 
-    @Override
     public void commandCompleted(int id, int exitcode)
     {
         commandCompletedOrTerminated(id, exitcode, false, null);
@@ -153,6 +244,7 @@ public class WaitCommand extends Command
     public CommandResult waitForFinish()
     {
         RootTools.log(String.format("Waiting for command %d...", id));
+        boolean interrupted = false;
         do
         {
             try
@@ -163,11 +255,58 @@ public class WaitCommand extends Command
             {
                 RootTools.log(String.format("...InterruptedException while waiting for command %d...", id),
                               LOG_TYPE_DEBUG, e);
+                interrupted = true;
             }
         }
         while (countdown.getCount() > 0);
         RootTools.log(String.format("...Done waiting for command %d", id));
+        if (interrupted) Thread.currentThread().interrupt(); // don't swallow it
 
         return getResult();
     }
+
+    /* *** FUTURE *** */
+
+    /**
+     * Stops waiting for the command, which is reported as terminated.
+     * The shell itself is left alone, as RootTools can't remove a single command from it.
+     */
+    @Override
+    public boolean cancel(boolean mayInterruptIfRunning)
+    {
+        synchronized (this)
+        {
+            if (isDone()) return false;
+            cancelled = true;
+        }
+        commandTerminated(id, REASON_CANCELLED);
+        return true;
+    }
+
+    @Override
+    public synchronized boolean isCancelled()
+    {
+        return cancelled;
+    }
+
+    @Override
+    public boolean isDone()
+    {
+        return countdown.getCount() == 0;
+    }
+
+    @Override
+    public CommandResult get() throws InterruptedException
+    {
+        countdown.await();
+        return getResult();
+    }
+
+    @Override
+    public CommandResult get(long timeout, TimeUnit unit) throws InterruptedException, TimeoutException
+    {
+        if (!countdown.await(timeout, unit))
+            throw new TimeoutException(String.format("Command %d didn't finish in time.", id));
+        return getResult();
+    }
 }
@@ -0,0 +1,93 @@
+/*
+ * The MIT License (MIT)
+ *
+ * Copyright (c) 2014 Eugenio Marletti
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in
+ * all copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN
+ * THE SOFTWARE.
+ */
+
+package me.eugeniomarletti.tetheringfixer.net;
+
+import java.io.BufferedReader;
+import java.io.FileReader;
+import java.io.IOException;
+import java.io.Reader;
+import java.util.Collection;
+import java.util.Set;
+import java.util.TreeSet;
+
+/**
+ * Finds the tethered clients from the neighbours the kernel knows about in {@code /proc/net/arp}.
+ */
+public final class ArpTable
+{
+    private static final String PROC_NET_ARP = "/proc/net/arp";
+
+    private static final int ATF_COM = 0x02; // completed entry, the client has answered
+
+    private ArpTable() { }
+
+    /**
+     * @param interfaces the tethering interfaces (e.g. {@code wlan0}, {@code rndis0}), {@code null} to take any
+     *                   interface that isn't cellular
+     * @return the IPv4 addresses of the clients, sorted
+     */
+    public static Set<String> getClients(Collection<String> interfaces) throws IOException
+    {
+        final Reader reader = new FileReader(PROC_NET_ARP);
+        try
+        {
+            return parse(reader, interfaces);
+        }
+        finally
+        {
+            reader.close();
+        }
+    }
+
+    /**
+     * Lines look like {@code "192.168.43.5  0x1  0x2  aa:bb:cc:dd:ee:ff  *  wlan0"}, after a header.
+     */
+    public static Set<String> parse(Reader reader, Collection<String> interfaces) throws IOException
+    {
+        final Set<String> clients = new TreeSet<>();
+        final BufferedReader lines = new BufferedReader(reader);
+        String line = lines.readLine(); // header
+        while ((line = lines.readLine()) != null)
+        {
+            final String[] fields = line.trim().split("\\s+");
+            if (fields.length < 6) continue;
+            final int flags;
+            try
+            {
+                flags = Integer.decode(fields[2]);
+            }
+            catch (NumberFormatException e)
+            {
+                continue;
+            }
+            if ((flags & ATF_COM) == 0) continue;
+            final String device = fields[5];
+            if (interfaces == null ? UpstreamInterfaces.isCellular(device) || "lo".equals(device)
+                                   : !interfaces.contains(device)) continue;
+            clients.add(fields[0]);
+        }
+        return clients;
+    }
+}
@@ -0,0 +1,132 @@
+/*
+ * The MIT License (MIT)
+ *
+ * Copyright (c) 2014 Eugenio Marletti
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in
+ * all copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN
+ * THE SOFTWARE.
+ */
+
+package me.eugeniomarletti.tetheringfixer.net;
+
+import com.stericson.RootTools.RootTools;
+import com.stericson.RootTools.exceptions.RootDeniedException;
+import me.eugeniomarletti.tetheringfixer.Async;
+import me.eugeniomarletti.tetheringfixer.command.CommandResult;
+import me.eugeniomarletti.tetheringfixer.command.ProcessShellBackend;
+import me.eugeniomarletti.tetheringfixer.command.ShellBackend;
+import me.eugeniomarletti.tetheringfixer.command.WaitCommand;
+
+import java.io.IOException;
+import java.util.concurrent.TimeoutException;
+
+/**
+ * Keeps {@code ip monitor link route} running in a root shell of its own, reporting every change as soon as it's
+ * printed instead of waiting for broadcasts or polling.
+ * The command never finishes, so it can't share the shell used by everything else: it's {@code exec}'d in place of
+ * its own shell, and stopping the monitor just closes it.
+ */
+public final class IpMonitor
+{
+    public static final String MONITOR_CMD = "exec ip monitor link route";
+
+    public interface Listener
+    {
+        /**
+         * Called on the thread reading the output, so it should return quickly.
+         */
+        public void onNetworkEvent(NetworkEvent event);
+    }
+
+    private final ShellBackend shell;
+    private final Listener     listener;
+
+    private MonitorCommand command = null;
+
+    /**
+     * @param shell must not be used by anything else, as the monitor takes it over
+     */
+    public IpMonitor(ShellBackend shell, Listener listener)
+    {
+        this.shell = shell;
+        this.listener = listener;
+    }
+
+    /**
+     * Uses a new {@code su} process.
+     */
+    public IpMonitor(Listener listener)
+    {
+        this(new ProcessShellBackend("su", null), listener);
+    }
+
+    public synchronized boolean isRunning()
+    {
+        return command != null && !command.isDone();
+    }
+
+    /**
+     * Does nothing if it's already running.
+     */
+    public synchronized void start() throws IOException, TimeoutException, RootDeniedException
+    {
+        if (isRunning()) return;
+        shell.start();
+        final MonitorCommand command = new MonitorCommand();
+        command.whenFinished(new Async.Callback<CommandResult>()
+        {
+            @Override
+            public void callback(CommandResult result, boolean success, Throwable error)
+            {
+                RootTools.log(String.format("ip monitor stopped after %d events (%s)", command.events,
+                                            success ? "exit code " + result.exitcode : result.terminatedReason));
+            }
+        });
+        shell.add(command);
+        this.command = command;
+    }
+
+    public synchronized void stop() throws IOException
+    {
+        command = null;
+        shell.close();
+    }
+
+    /**
+     * Parses the lines as they arrive, without keeping any output.
+     */
+    private final class MonitorCommand extends WaitCommand
+    {
+        volatile int events = 0;
+
+        MonitorCommand()
+        {
+            super(MONITOR_CMD);
+            setTimeout(0); // runs until stopped
+        }
+
+        @Override
+        public void commandOutput(int id, String line)
+        {
+            final NetworkEvent event = IpMonitorParser.parse(line);
+            if (event == null) return;
+            events++;
+            listener.onNetworkEvent(event);
+        }
+    }
+}
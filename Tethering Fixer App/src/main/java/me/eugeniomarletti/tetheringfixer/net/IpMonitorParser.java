@@ -0,0 +1,151 @@
+/*
+ * The MIT License (MIT)
+ *
+ * Copyright (c) 2014 Eugenio Marletti
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in
+ * all copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN
+ * THE SOFTWARE.
+ */
+
+package me.eugeniomarletti.tetheringfixer.net;
+
+/**
+ * Turns the lines printed by {@code ip monitor link route} into {@link NetworkEvent}s, one at a time.
+ * Links look like {@code [Deleted ]3: rmnet0: <BROADCAST,MULTICAST,UP,LOWER_UP> mtu 1500 ...}, followed by indented
+ * lines with the details; routes like {@code [Deleted ][unicast ]default via 10.0.0.1 dev rmnet0 ...}. Newer versions
+ * can also prefix them with {@code [LINK]} or {@code [ROUTE]}.
+ * Only scans the line in place, no splitting nor regular expressions.
+ */
+public final class IpMonitorParser
+{
+    private static final String DELETED     = "Deleted ";
+    private static final String LABEL_LINK  = "[LINK]";
+    private static final String LABEL_ROUTE = "[ROUTE]";
+    private static final String DEV         = " dev ";
+
+    // see ip-route(8)
+    private static final String[] ROUTE_TYPES =
+            {"unicast", "local", "broadcast", "multicast", "throw", "unreachable", "prohibit", "blackhole", "nat",
+             "anycast"};
+
+    private IpMonitorParser() { }
+
+    /**
+     * @return the event, or {@code null} if the line doesn't start one
+     */
+    public static NetworkEvent parse(String line)
+    {
+        final long time = System.nanoTime();
+        final int length = line.length();
+        if (length == 0 || Character.isWhitespace(line.charAt(0))) return null; // details of the previous one
+
+        int start = 0;
+        int type = -1;
+        if (line.startsWith(LABEL_LINK))
+        {
+            type = NetworkEvent.TYPE_LINK;
+            start = skipSpaces(line, LABEL_LINK.length());
+        }
+        else if (line.startsWith(LABEL_ROUTE))
+        {
+            type = NetworkEvent.TYPE_ROUTE;
+            start = skipSpaces(line, LABEL_ROUTE.length());
+        }
+        final boolean deleted = line.startsWith(DELETED, start);
+        if (deleted) start = skipSpaces(line, start + DELETED.length());
+        if (type < 0) type = isLink(line, start) ? NetworkEvent.TYPE_LINK : NetworkEvent.TYPE_ROUTE;
+
+        return type == NetworkEvent.TYPE_LINK ? parseLink(line, start, deleted, time)
+                                              : parseRoute(line, start, deleted, time);
+    }
+
+    private static int skipSpaces(String line, int index)
+    {
+        while (index < line.length() && line.charAt(index) == ' ') index++;
+        return index;
+    }
+
+    private static int endOfWord(String line, int index)
+    {
+        while (index < line.length() && line.charAt(index) != ' ') index++;
+        return index;
+    }
+
+    /**
+     * @return whether it starts with the index of the link, e.g. {@code 3: }
+     */
+    private static boolean isLink(String line, int start)
+    {
+        int i = start;
+        while (i < line.length() && Character.isDigit(line.charAt(i))) i++;
+        return i > start && i < line.length() && line.charAt(i) == ':';
+    }
+
+    private static NetworkEvent parseLink(String line, int start, boolean deleted, long time)
+    {
+        final int nameStart = skipSpaces(line, line.indexOf(':', start) + 1);
+        int nameEnd = nameStart;
+        while (nameEnd < line.length() && line.charAt(nameEnd) != ':' && line.charAt(nameEnd) != '@'
+                && line.charAt(nameEnd) != ' ') nameEnd++;
+        if (nameEnd == nameStart) return null;
+
+        boolean up = false;
+        final int flagsStart = line.indexOf('<', nameEnd);
+        final int flagsEnd = flagsStart < 0 ? -1 : line.indexOf('>', flagsStart);
+        for (int i = flagsStart + 1; flagsEnd > 0 && i < flagsEnd; )
+        {
+            int end = line.indexOf(',', i);
+            if (end < 0 || end > flagsEnd) end = flagsEnd;
+            if (end - i == 2 && line.startsWith("UP", i)) up = true;
+            i = end + 1;
+        }
+        return new NetworkEvent(NetworkEvent.TYPE_LINK, deleted, line.substring(nameStart, nameEnd), up, false, time);
+    }
+
+    private static NetworkEvent parseRoute(String line, int start, boolean deleted, long time)
+    {
+        int end = endOfWord(line, start);
+        for (String type : ROUTE_TYPES)
+            if (end - start == type.length() && line.startsWith(type, start))
+            {
+                start = skipSpaces(line, end);
+                end = endOfWord(line, start);
+                break;
+            }
+        if (end == start) return null;
+        final boolean defaultRoute = isDefault(line, start, end);
+
+        String iface = null;
+        final int dev = line.indexOf(DEV, end);
+        if (dev >= 0)
+        {
+            final int ifaceStart = skipSpaces(line, dev + DEV.length());
+            final int ifaceEnd = endOfWord(line, ifaceStart);
+            if (ifaceEnd > ifaceStart) iface = line.substring(ifaceStart, ifaceEnd);
+        }
+        return new NetworkEvent(NetworkEvent.TYPE_ROUTE, deleted, iface, false, defaultRoute, time);
+    }
+
+    private static boolean isDefault(String line, int start, int end)
+    {
+        final int length = end - start;
+        return (length == 7 && line.startsWith("default", start))
+                || (length == 9 && line.startsWith("0.0.0.0/0", start))
+                || (length == 4 && line.startsWith("::/0", start));
+    }
+}
@@ -0,0 +1,68 @@
+/*
+ * The MIT License (MIT)
+ *
+ * Copyright (c) 2014 Eugenio Marletti
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in
+ * all copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN
+ * THE SOFTWARE.
+ */
+
+package me.eugeniomarletti.tetheringfixer.net;
+
+/**
+ * A change reported by {@code ip monitor link route}.
+ */
+public final class NetworkEvent
+{
+    public static final int TYPE_LINK  = 0;
+    public static final int TYPE_ROUTE = 1;
+
+    public final int     type;
+    public final boolean deleted;
+    public final String  iface; // null if the route has no device
+    public final boolean up; // links only: whether the UP flag is set
+    public final boolean defaultRoute; // routes only
+    public final long    time; // System.nanoTime() when the line was read
+
+    public NetworkEvent(int type, boolean deleted, String iface, boolean up, boolean defaultRoute, long time)
+    {
+        this.type = type;
+        this.deleted = deleted;
+        this.iface = iface;
+        this.up = up;
+        this.defaultRoute = defaultRoute;
+        this.time = time;
+    }
+
+    /**
+     * @return whether it can change where tethered traffic goes out from: a cellular link going up or down, or a
+     * default route coming or going
+     */
+    public boolean affectsUpstream()
+    {
+        if (type == TYPE_ROUTE) return defaultRoute;
+        return iface != null && UpstreamInterfaces.isCellular(iface);
+    }
+
+    @Override
+    public String toString()
+    {
+        return String.format("%s%s %s%s", deleted ? "Deleted " : "", type == TYPE_LINK ? "link" : "route", iface,
+                             type == TYPE_LINK ? (up ? " up" : " down") : (defaultRoute ? " default" : ""));
+    }
+}
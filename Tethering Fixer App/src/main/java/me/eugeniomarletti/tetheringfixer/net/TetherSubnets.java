@@ -0,0 +1,170 @@
+/*
+ * The MIT License (MIT)
+ *
+ * Copyright (c) 2014 Eugenio Marletti
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in
+ * all copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN
+ * THE SOFTWARE.
+ */
+
+package me.eugeniomarletti.tetheringfixer.net;
+
+import java.io.BufferedReader;
+import java.io.FileReader;
+import java.io.IOException;
+import java.io.Reader;
+import java.util.Arrays;
+import java.util.Collection;
+import java.util.Collections;
+import java.util.Set;
+import java.util.TreeSet;
+
+/**
+ * Finds the subnets the tethered clients are in. The usual ones are always included, so that the fix works as soon
+ * as tethering starts; the others (vendors pick their own, e.g. for USB on some devices) come from the routes of the
+ * local interfaces in {@code /proc/net/route}.
+ */
+public final class TetherSubnets
+{
+    private static final String PROC_NET_ROUTE = "/proc/net/route";
+
+    // USB, Wi-Fi and Bluetooth in AOSP
+    public static final Set<String> DEFAULT_SUBNETS = Collections.unmodifiableSet(
+            new TreeSet<>(Arrays.asList("192.168.42.0/24", "192.168.43.0/24", "192.168.44.0/24")));
+
+    private static final int RTF_UP      = 0x0001;
+    private static final int RTF_GATEWAY = 0x0002;
+
+    private TetherSubnets() { }
+
+    /**
+     * @param interfaces the tethering interfaces, {@code null} to take any interface that isn't cellular
+     * @return the subnets in CIDR notation, sorted
+     */
+    public static Set<String> get(Collection<String> interfaces)
+    {
+        final Set<String> subnets = new TreeSet<>(DEFAULT_SUBNETS);
+        try
+        {
+            final Reader reader = new FileReader(PROC_NET_ROUTE);
+            try
+            {
+                parse(reader, interfaces, subnets);
+            }
+            finally
+            {
+                reader.close();
+            }
+        }
+        catch (IOException ignore)
+        {
+            // the defaults will have to do
+        }
+        return subnets;
+    }
+
+    /**
+     * Lines look like {@code "wlan0\t002BA8C0\t00000000\t0001\t0\t0\t0\t00FFFFFF\t0\t0\t0"}: the addresses are in
+     * host order, that is little-endian on any device we run on. Only private subnets reached without a gateway are
+     * kept.
+     */
+    public static void parse(Reader reader, Collection<String> interfaces, Set<String> subnets) throws IOException
+    {
+        final BufferedReader lines = new BufferedReader(reader);
+        String line = lines.readLine(); // header
+        while ((line = lines.readLine()) != null)
+        {
+            final String[] fields = line.trim().split("\\s+");
+            if (fields.length < 8) continue;
+            final String device = fields[0];
+            if (interfaces == null ? UpstreamInterfaces.isCellular(device) || "lo".equals(device)
+                                   : !interfaces.contains(device)) continue;
+            final int destination, flags, mask;
+            try
+            {
+                destination = (int)Long.parseLong(fields[1], 16);
+                flags = Integer.parseInt(fields[3], 16);
+                mask = (int)Long.parseLong(fields[7], 16);
+            }
+            catch (NumberFormatException e)
+            {
+                continue;
+            }
+            if ((flags & RTF_UP) == 0 || (flags & RTF_GATEWAY) != 0 || mask == 0) continue;
+            if (!isPrivate(destination)) continue;
+            subnets.add(String.format("%d.%d.%d.%d/%d", destination & 0xFF, (destination >> 8) & 0xFF,
+                                      (destination >> 16) & 0xFF, (destination >>> 24), Integer.bitCount(mask)));
+        }
+    }
+
+    /**
+     * @param subnets in CIDR notation
+     * @param address IPv4
+     * @return whether the address is in any of the subnets
+     */
+    public static boolean contains(Collection<String> subnets, String address)
+    {
+        final int host = parseAddress(address);
+        for (String subnet : subnets)
+        {
+            final int slash = subnet.indexOf('/');
+            if (slash < 0) continue;
+            final int prefix;
+            try
+            {
+                prefix = Integer.parseInt(subnet.substring(slash + 1));
+            }
+            catch (NumberFormatException e)
+            {
+                continue;
+            }
+            final int mask = prefix == 0 ? 0 : -1 << (32 - prefix);
+            if ((parseAddress(subnet.substring(0, slash)) & mask) == (host & mask)) return true;
+        }
+        return false;
+    }
+
+    /**
+     * @return the address in network order, 0 if it can't be parsed
+     */
+    private static int parseAddress(String address)
+    {
+        final String[] octets = address.split("\\.");
+        if (octets.length != 4) return 0;
+        int value = 0;
+        try
+        {
+            for (String octet : octets) value = (value << 8) | (Integer.parseInt(octet) & 0xFF);
+        }
+        catch (NumberFormatException e)
+        {
+            return 0;
+        }
+        return value;
+    }
+
+    /**
+     * @param address little-endian
+     */
+    private static boolean isPrivate(int address)
+    {
+        final int first = address & 0xFF;
+        final int second = (address >> 8) & 0xFF;
+        return first == 10 || (first == 172 && (second & 0xF0) == 16) || (first == 192 && second == 168);
+    }
+}
@@ -0,0 +1,231 @@
+/*
+ * The MIT License (MIT)
+ *
+ * Copyright (c) 2014 Eugenio Marletti
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in
+ * all copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN
+ * THE SOFTWARE.
+ */
+
+package me.eugeniomarletti.tetheringfixer.net;
+
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.Set;
+import java.util.TreeSet;
+
+/**
+ * Finds the cellular interfaces tethered traffic can go out from, which are not always {@code rmnet0}: depending on
+ * the modem they can be {@code rmnet_data0..7}, {@code rmnet_ipa0}, {@code ccmni0}, {@code wwan0}...
+ * An interface counts as active if it carries a default route in {@code /proc/net/route}, or if it's up in
+ * {@code /sys/class/net}; an operstate of {@code unknown} only counts along with a carrier, as idle interfaces report it
+ * too.
+ * Meant to run on every connectivity change, so it reads everything with a single reused buffer, grown as needed, and
+ * only allocates strings for the interfaces it keeps.
+ */
+public final class UpstreamInterfaces
+{
+    private static final String PROC_NET_ROUTE = "/proc/net/route";
+    private static final String SYS_CLASS_NET  = "/sys/class/net";
+
+    private static final String[] CELLULAR_PREFIXES =
+            {"rmnet", "ccmni", "wwan", "pdp", "ccemni", "usb_rmnet", "v4-rmnet", "v4-ccmni", "v4-wwan"};
+
+    private static final int RTF_UP = 0x0001;
+
+    // used by read(), grown to fit the biggest file read so far
+    private static byte[] buffer = new byte[8192];
+
+    private static Set<String> cached  = Collections.emptySet();
+    private static int         version = 0;
+
+    private UpstreamInterfaces() { }
+
+    public static boolean isCellular(String name)
+    {
+        for (String prefix : CELLULAR_PREFIXES)
+            if (name.startsWith(prefix)) return true;
+        return false;
+    }
+
+    /**
+     * @return the last discovered set, sorted; empty if never discovered or if nothing was found
+     */
+    public static synchronized Set<String> get()
+    {
+        return cached;
+    }
+
+    /**
+     * @return incremented every time {@link #refresh()} finds a different set
+     */
+    public static synchronized int getVersion()
+    {
+        return version;
+    }
+
+    /**
+     * Discovers the interfaces again.
+     *
+     * @return whether the set changed since the last time
+     */
+    public static synchronized boolean refresh()
+    {
+        final Set<String> found = new TreeSet<>();
+        readDefaultRoutes(found);
+        readUpInterfaces(found);
+        if (found.equals(cached)) return false;
+        cached = Collections.unmodifiableSet(found);
+        version++;
+        return true;
+    }
+
+    /**
+     * Reads the whole file into {@link #buffer}, growing it if needed.
+     *
+     * @return how many bytes were read, -1 if the file can't be read
+     */
+    private static int read(String path)
+    {
+        InputStream in = null;
+        try
+        {
+            in = new FileInputStream(path);
+            int length = 0;
+            int read;
+            while ((read = in.read(buffer, length, buffer.length - length)) > 0)
+            {
+                length += read;
+                if (length == buffer.length) buffer = Arrays.copyOf(buffer, buffer.length * 2);
+            }
+            return length;
+        }
+        catch (IOException e)
+        {
+            return -1;
+        }
+        finally
+        {
+            if (in != null) try
+            {
+                in.close();
+            }
+            catch (IOException ignore)
+            {
+            }
+        }
+    }
+
+    /**
+     * Lines look like {@code "rmnet0\t00000000\t0100000A\t0003\t0\t0\t0\t00000000\t0\t0\t0"}: interface, destination,
+     * gateway and flags (hex) are all we need.
+     */
+    private static void readDefaultRoutes(Set<String> found)
+    {
+        final int length = read(PROC_NET_ROUTE);
+        int line = nextLine(0, length); // skip the header
+        while (line < length)
+        {
+            final int end = lineEnd(line, length);
+            final int nameEnd = fieldEnd(line, end);
+            final int destination = skipBlanks(nameEnd, end);
+            final int destinationEnd = fieldEnd(destination, end);
+            final int gateway = skipBlanks(destinationEnd, end);
+            final int flags = skipBlanks(fieldEnd(gateway, end), end);
+            if (isZero(destination, destinationEnd) && (parseHex(flags, fieldEnd(flags, end)) & RTF_UP) != 0)
+            {
+                final String name = new String(buffer, line, nameEnd - line);
+                if (isCellular(name)) found.add(name);
+            }
+            line = nextLine(end, length);
+        }
+    }
+
+    private static void readUpInterfaces(Set<String> found)
+    {
+        final String[] names = new File(SYS_CLASS_NET).list();
+        if (names == null) return;
+        for (String name : names)
+        {
+            if (!isCellular(name) || found.contains(name)) continue;
+            final String path = SYS_CLASS_NET + '/' + name;
+            final int length = read(path + "/operstate");
+            if (startsWith("up", length)) found.add(name);
+            // cellular drivers often report "unknown" even when they're carrying traffic, but so do idle ones
+            else if (startsWith("unknown", length) && startsWith("1", read(path + "/carrier"))) found.add(name);
+        }
+    }
+
+    private static boolean startsWith(String prefix, int length)
+    {
+        if (length < prefix.length()) return false;
+        for (int i = 0; i < prefix.length(); i++)
+            if (buffer[i] != prefix.charAt(i)) return false;
+        return true;
+    }
+
+    private static int lineEnd(int start, int length)
+    {
+        int i = start;
+        while (i < length && buffer[i] != '\n') i++;
+        return i;
+    }
+
+    private static int nextLine(int start, int length)
+    {
+        return Math.min(lineEnd(start, length) + 1, Math.max(length, 0));
+    }
+
+    private static int fieldEnd(int start, int end)
+    {
+        int i = start;
+        while (i < end && buffer[i] != '\t' && buffer[i] != ' ') i++;
+        return i;
+    }
+
+    private static int skipBlanks(int start, int end)
+    {
+        int i = start;
+        while (i < end && (buffer[i] == '\t' || buffer[i] == ' ')) i++;
+        return i;
+    }
+
+    private static boolean isZero(int start, int end)
+    {
+        if (start >= end) return false;
+        for (int i = start; i < end; i++)
+            if (buffer[i] != '0') return false;
+        return true;
+    }
+
+    private static int parseHex(int start, int end)
+    {
+        int value = 0;
+        for (int i = start; i < end; i++)
+        {
+            final int digit = Character.digit(buffer[i], 16);
+            if (digit < 0) break;
+            value = (value << 4) | digit;
+        }
+        return value;
+    }
+}
@@ -0,0 +1,167 @@
+/*
+ * The MIT License (MIT)
+ *
+ * Copyright (c) 2014 Eugenio Marletti
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in
+ * all copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN
+ * THE SOFTWARE.
+ */
+
+package me.eugeniomarletti.tetheringfixer.netfilter;
+
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.Collections;
+import java.util.HashSet;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+
+/**
+ * A chain of our own in the {@code filter} table, jumped to at the top of {@code FORWARD}, with a pair of rules per
+ * tethered client that only count its traffic: {@code -s <ip>/32 -j RETURN} for what it sends and
+ * {@code -d <ip>/32 -j RETURN} for what it receives. Every forwarded packet comes back to {@code FORWARD} untouched.
+ * Updates are computed against a snapshot of the table, so a client joining or leaving only costs its own two rules
+ * and the counters of the others are kept.
+ */
+public final class AccountingChain
+{
+    public static final String TABLE        = "filter";
+    public static final String CHAIN        = "tetherfix_acct";
+    public static final String PARENT_CHAIN = "FORWARD";
+
+    private static final String UPLOAD_PREFIX   = "-s ";
+    private static final String DOWNLOAD_PREFIX = "-d ";
+    private static final String SUFFIX          = "/32 -j RETURN";
+
+    private static final DesiredRule JUMP = new DesiredRule(TABLE, PARENT_CHAIN, "", CHAIN, 1);
+
+    private AccountingChain() { }
+
+    private static String getUploadSpec(String address)
+    {
+        return UPLOAD_PREFIX + address + SUFFIX;
+    }
+
+    private static String getDownloadSpec(String address)
+    {
+        return DOWNLOAD_PREFIX + address + SUFFIX;
+    }
+
+    /**
+     * @return the address of the client the rule counts, {@code null} if it's not one of ours
+     */
+    private static String getAddress(String spec, String prefix)
+    {
+        if (!spec.startsWith(prefix) || !spec.endsWith(SUFFIX)) return null;
+        return spec.substring(prefix.length(), spec.length() - SUFFIX.length());
+    }
+
+    /**
+     * @param snapshot of the {@code filter} table, must be recent
+     * @param clients  the IPv4 addresses of the clients currently connected
+     * @return the operations creating the chain if needed and bringing its rules in line with the clients, empty if
+     *         it already is
+     */
+    public static IptablesTransaction update(TableSnapshot snapshot, Collection<String> clients)
+    {
+        checkTable(snapshot);
+        // fixes the jump first, so that if it's missing it's put back where it belongs
+        final IptablesTransaction transaction = Reconciler.reconcile(snapshot, Collections.singleton(JUMP));
+        // declaring a chain that exists would flush it, losing the counters
+        if (!snapshot.hasChain(CHAIN)) transaction.newChain(CHAIN);
+
+        final Set<String> wanted = new HashSet<>(clients.size() * 8 / 3 + 1);
+        for (String client : clients)
+        {
+            wanted.add(getUploadSpec(client));
+            wanted.add(getDownloadSpec(client));
+        }
+        // clients that left, and any extra copy, which would never be reached anyway
+        final Set<String> present = new HashSet<>(wanted.size() * 4 / 3 + 1);
+        for (Rule rule : snapshot.getRules(CHAIN))
+            if (!wanted.contains(rule.spec) || !present.add(rule.spec)) transaction.delete(CHAIN, rule.spec);
+        // clients that joined
+        for (String client : clients)
+        {
+            final String upload = getUploadSpec(client);
+            final String download = getDownloadSpec(client);
+            if (present.add(upload)) transaction.append(CHAIN, upload);
+            if (present.add(download)) transaction.append(CHAIN, download);
+        }
+        return transaction;
+    }
+
+    /**
+     * @return the operations removing the jump and the chain, empty if there's nothing to remove
+     */
+    public static IptablesTransaction remove(TableSnapshot snapshot)
+    {
+        checkTable(snapshot);
+        final IptablesTransaction transaction = new IptablesTransaction(TABLE);
+        final int jumps = snapshot.count(JUMP.chain, JUMP.spec);
+        for (int i = 0; i < jumps; i++) transaction.delete(JUMP.chain, JUMP.spec);
+        if (snapshot.hasChain(CHAIN)) transaction.flush(CHAIN).deleteChain(CHAIN);
+        return transaction;
+    }
+
+    public static boolean isInstalled(TableSnapshot snapshot)
+    {
+        checkTable(snapshot);
+        return snapshot.hasChain(CHAIN) && snapshot.contains(JUMP.chain, JUMP.spec);
+    }
+
+    /**
+     * @param snapshot of the {@code filter} table, read with the counters
+     * @return the traffic of each client in the chain, in the order they joined
+     */
+    public static List<ClientUsage> getUsage(TableSnapshot snapshot)
+    {
+        checkTable(snapshot);
+        // tx bytes, rx bytes, tx packets, rx packets
+        final Map<String, long[]> counters = new LinkedHashMap<>();
+        for (Rule rule : snapshot.getRules(CHAIN))
+        {
+            String address = getAddress(rule.spec, UPLOAD_PREFIX);
+            final boolean upload = address != null;
+            if (!upload) address = getAddress(rule.spec, DOWNLOAD_PREFIX);
+            if (address == null) continue;
+
+            long[] values = counters.get(address);
+            if (values == null) counters.put(address, values = new long[4]);
+            values[upload ? 0 : 1] += Math.max(rule.bytes, 0);
+            values[upload ? 2 : 3] += Math.max(rule.packets, 0);
+        }
+
+        final List<ClientUsage> usage = new ArrayList<>(counters.size());
+        for (Map.Entry<String, long[]> entry : counters.entrySet())
+        {
+            final long[] values = entry.getValue();
+            usage.add(new ClientUsage(entry.getKey(), values[0], values[1], values[2], values[3]));
+        }
+        return usage;
+    }
+
+    private static void checkTable(TableSnapshot snapshot)
+    {
+        if (!TABLE.equals(snapshot.table))
+            throw new IllegalArgumentException(String.format("Expected a snapshot of '%s', got '%s'.", TABLE,
+                                                             snapshot.table));
+    }
+}
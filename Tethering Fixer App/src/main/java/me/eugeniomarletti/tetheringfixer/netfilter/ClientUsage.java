@@ -0,0 +1,57 @@
+/*
+ * The MIT License (MIT)
+ *
+ * Copyright (c) 2014 Eugenio Marletti
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in
+ * all copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN
+ * THE SOFTWARE.
+ */
+
+package me.eugeniomarletti.tetheringfixer.netfilter;
+
+/**
+ * Traffic of a tethered client, as counted by the {@link AccountingChain}.
+ */
+public final class ClientUsage
+{
+    public final String address;
+    public final long   txBytes; // from the client to the upstream
+    public final long   rxBytes; // from the upstream to the client
+    public final long   txPackets;
+    public final long   rxPackets;
+
+    public ClientUsage(String address, long txBytes, long rxBytes, long txPackets, long rxPackets)
+    {
+        this.address = address;
+        this.txBytes = txBytes;
+        this.rxBytes = rxBytes;
+        this.txPackets = txPackets;
+        this.rxPackets = rxPackets;
+    }
+
+    public long getTotalBytes()
+    {
+        return txBytes + rxBytes;
+    }
+
+    @Override
+    public String toString()
+    {
+        return String.format("%s: tx %dB rx %dB", address, txBytes, rxBytes);
+    }
+}
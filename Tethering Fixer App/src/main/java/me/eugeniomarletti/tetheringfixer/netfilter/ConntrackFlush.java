@@ -0,0 +1,126 @@
+/*
+ * The MIT License (MIT)
+ *
+ * Copyright (c) 2014 Eugenio Marletti
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in
+ * all copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN
+ * THE SOFTWARE.
+ */
+
+package me.eugeniomarletti.tetheringfixer.netfilter;
+
+import java.util.Collection;
+import java.util.regex.Matcher;
+import java.util.regex.Pattern;
+
+/**
+ * Deletes the connection tracking entries of the tethered clients. Established flows keep the NAT binding they got
+ * when they started, so without this they'd keep failing until they time out even after the fix is applied.
+ * Uses {@code conntrack -D} per client where the binary is available. Only if explicitly allowed, it otherwise falls
+ * back to the vendor kernels that flush the whole table when {@code f} is written to {@code /proc/net/nf_conntrack}.
+ */
+public final class ConntrackFlush
+{
+    // http://conntrack-tools.netfilter.org/conntrack.html
+
+    public static final String BINARY = "conntrack";
+
+    public static final int METHOD_NONE      = 0; // no clients, nothing to do
+    public static final int METHOD_CONNTRACK = 1;
+    public static final int METHOD_PROC      = 2; // the whole table, not just the clients
+    public static final int METHOD_MISSING   = 3; // no conntrack, and the whole table isn't allowed or can't be
+
+    private static final String PROC_NF_CONNTRACK = "/proc/net/nf_conntrack";
+
+    // prints the number of entries before and after, fails if the file can't be written
+    private static final String PROC_FLUSH_COMMAND =
+            String.format("n=$(wc -l < %1$s) && echo f > %1$s && echo \"$n $(wc -l < %1$s)\"", PROC_NF_CONNTRACK);
+
+    // printed on stderr, e.g. "conntrack v1.4.4 (conntrack-tools): 3 flow entries have been deleted."
+    private static final Pattern DELETED = Pattern.compile("(\\d+) flow entr(?:y|ies) ha(?:s|ve) been deleted");
+
+    // conntrack exits with 1 when there's nothing to delete
+    public static final int RETURN_CODE_NOTHING_DELETED = 1;
+
+    private ConntrackFlush() { }
+
+    public static final class Result
+    {
+        public final int  method;
+        public final int  flushed;
+        public final long elapsed; // ms
+
+        public Result(int method, int flushed, long elapsed)
+        {
+            this.method = method;
+            this.flushed = flushed;
+            this.elapsed = elapsed;
+        }
+
+        @Override
+        public String toString()
+        {
+            return String.format("%d flows flushed in %dms (method %d)", flushed, elapsed, method);
+        }
+    }
+
+    /**
+     * @param clients IPv4 addresses
+     * @return one command per client, with stderr merged so that the count can be read
+     */
+    public static String[] getDeleteCommands(Collection<String> clients)
+    {
+        final String[] commands = new String[clients.size()];
+        int i = 0;
+        for (String client : clients) commands[i++] = String.format("%s -D -s %s 2>&1", BINARY, client);
+        return commands;
+    }
+
+    /**
+     * @return how many entries the {@code conntrack -D} command says it deleted
+     */
+    public static int parseDeleted(String output)
+    {
+        if (output == null) return 0;
+        final Matcher matcher = DELETED.matcher(output);
+        return matcher.find() ? Integer.parseInt(matcher.group(1)) : 0;
+    }
+
+    public static String getProcFlushCommand()
+    {
+        return PROC_FLUSH_COMMAND;
+    }
+
+    /**
+     * @return how many entries went away according to the output of {@link #getProcFlushCommand()}
+     */
+    public static int parseProcFlushed(String output)
+    {
+        if (output == null) return 0;
+        final String[] counts = output.trim().split("\\s+");
+        if (counts.length != 2) return 0;
+        try
+        {
+            return Math.max(Integer.parseInt(counts[0]) - Integer.parseInt(counts[1]), 0);
+        }
+        catch (NumberFormatException e)
+        {
+            return 0;
+        }
+    }
+}
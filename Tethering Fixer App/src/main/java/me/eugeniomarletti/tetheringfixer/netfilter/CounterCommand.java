@@ -0,0 +1,143 @@
+/*
+ * The MIT License (MIT)
+ *
+ * Copyright (c) 2014 Eugenio Marletti
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in
+ * all copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN
+ * THE SOFTWARE.
+ */
+
+package me.eugeniomarletti.tetheringfixer.netfilter;
+
+import me.eugeniomarletti.tetheringfixer.command.BatchCommand;
+
+/**
+ * Dumps one or more tables through {@code iptables-save -c} (or {@code ip6tables-save -c}) in a single batch and adds
+ * up the counters of the given rules, without keeping anything else: unlike {@link SnapshotParser} it doesn't build
+ * rules nor allocate while parsing, as it's meant to be run over and over while tethering.
+ */
+public final class CounterCommand extends BatchCommand
+{
+    /**
+     * The rules to add up in one dump, all in the same chain.
+     */
+    public static final class Rules
+    {
+        final String   command;
+        final String   chain;
+        final String[] specs;
+
+        public Rules(String saveBinary, String table, String chain, String... specs)
+        {
+            this.command = String.format("%s -c -t %s", saveBinary, table);
+            this.chain = chain;
+            this.specs = new String[specs.length];
+            for (int i = 0; i < specs.length; i++) this.specs[i] = Rule.normalize(specs[i]);
+        }
+    }
+
+    private final Rules[] rules;
+
+    private long packets = 0;
+    private long bytes   = 0;
+    private int  matched = 0;
+
+    public CounterCommand(Rules... rules)
+    {
+        super(getCommands(rules));
+        this.rules = rules.clone();
+    }
+
+    /**
+     * @param specs the rules to add up, all in the same chain
+     */
+    public CounterCommand(String saveBinary, String table, String chain, String... specs)
+    {
+        this(new Rules(saveBinary, table, chain, specs));
+    }
+
+    private static String[] getCommands(Rules... rules)
+    {
+        final String[] commands = new String[rules.length];
+        for (int i = 0; i < rules.length; i++) commands[i] = rules[i].command;
+        return commands;
+    }
+
+    @Override
+    protected void batchOutput(int index, String line)
+    {
+        // "[packets:bytes] -A CHAIN spec"
+        if (line == null || !line.startsWith("[")) return;
+        final String chain = rules[index].chain;
+        final int length = line.length();
+        long packets = 0;
+        long bytes = 0;
+        long value = 0;
+        int i = 1;
+        for (; i < length; i++)
+        {
+            final char c = line.charAt(i);
+            if (c >= '0' && c <= '9') value = value * 10 + (c - '0');
+            else if (c == ':')
+            {
+                packets = value;
+                value = 0;
+            }
+            else if (c == ']')
+            {
+                bytes = value;
+                break;
+            }
+            else return;
+        }
+        i++;
+
+        if (!line.startsWith(" -A ", i) || !line.startsWith(chain, i + 4)) return;
+        i += 4 + chain.length();
+        if (i >= length || line.charAt(i) != ' ') return;
+        i++;
+        int end = length;
+        while (end > i && line.charAt(end - 1) == ' ') end--;
+        for (String spec : rules[index].specs)
+            if (end - i == spec.length() && line.startsWith(spec, i))
+            {
+                this.packets += packets;
+                this.bytes += bytes;
+                matched++;
+                return;
+            }
+    }
+
+    public synchronized long getPackets()
+    {
+        return packets;
+    }
+
+    public synchronized long getBytes()
+    {
+        return bytes;
+    }
+
+    /**
+     * @return how many rules were found, also counting copies of the same one
+     */
+    public synchronized int getMatched()
+    {
+        return matched;
+    }
+}
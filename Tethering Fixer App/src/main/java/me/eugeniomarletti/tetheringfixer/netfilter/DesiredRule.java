@@ -0,0 +1,69 @@
+/*
+ * The MIT License (MIT)
+ *
+ * Copyright (c) 2014 Eugenio Marletti
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in
+ * all copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN
+ * THE SOFTWARE.
+ */
+
+package me.eugeniomarletti.tetheringfixer.netfilter;
+
+/**
+ * A rule that must be in its chain exactly once.
+ */
+public final class DesiredRule
+{
+    // append to the tail of the chain, like iptables -A
+    public static final int POSITION_APPEND = 0;
+
+    public final String table;
+    public final String chain;
+    public final String spec;
+    public final int    position; // 1-based, only used if the rule is missing
+
+    /**
+     * @param match  e.g. {@code -s 192.168.0.0/16 -o rmnet0}, can be empty
+     * @param target e.g. {@code MASQUERADE}, followed by its options if any
+     */
+    public DesiredRule(String table, String chain, String match, String target, int position)
+    {
+        if (position < POSITION_APPEND) throw new IllegalArgumentException("Invalid position: " + position);
+        this.table = table;
+        this.chain = chain;
+        this.spec = Rule.normalize(match + " -j " + target);
+        this.position = position;
+    }
+
+    public DesiredRule(String table, String chain, String match, String target)
+    {
+        this(table, chain, match, target, POSITION_APPEND);
+    }
+
+    public String getKey()
+    {
+        return Rule.getKey(chain, spec);
+    }
+
+    @Override
+    public String toString()
+    {
+        return String.format("-t %s -%s %s %s", table, position == POSITION_APPEND ? "A" : "I",
+                             position == POSITION_APPEND ? chain : chain + " " + position, spec);
+    }
+}
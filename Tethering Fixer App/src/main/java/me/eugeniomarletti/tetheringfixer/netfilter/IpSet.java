@@ -0,0 +1,121 @@
+/*
+ * The MIT License (MIT)
+ *
+ * Copyright (c) 2014 Eugenio Marletti
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in
+ * all copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN
+ * THE SOFTWARE.
+ */
+
+package me.eugeniomarletti.tetheringfixer.netfilter;
+
+import java.util.Collection;
+import java.util.Set;
+import java.util.TreeSet;
+
+/**
+ * An {@code ipset} matched by a single {@code -m set} rule: the kernel looks members up in a hash, so the cost per
+ * packet doesn't grow with them, and changing them never touches the chains.
+ * Like tables, sets are read with a single dump and updated with a single {@code ipset restore}.
+ */
+public final class IpSet
+{
+    // http://ipset.netfilter.org/ipset.man.html
+
+    public static final String BINARY = "ipset";
+
+    public static final String TYPE_HASH_NET = "hash:net";
+
+    public static final String DIRECTION_SOURCE      = "src";
+    public static final String DIRECTION_DESTINATION = "dst";
+
+    private static final String HEREDOC_DELIMITER = "__TF_IPSET__";
+
+    private static final String SAVE_ADD_PREFIX = "add ";
+
+    public final String name;
+    public final String type;
+
+    public IpSet(String name, String type)
+    {
+        this.name = name;
+        this.type = type;
+    }
+
+    /**
+     * Does nothing if the set already exists.
+     */
+    public String getCreateCommand()
+    {
+        return String.format("%s create %s %s -exist", BINARY, name, type);
+    }
+
+    /**
+     * Prints the set as {@code create} and {@code add} lines.
+     */
+    public String getSaveCommand()
+    {
+        return String.format("%s save %s", BINARY, name);
+    }
+
+    /**
+     * @param direction {@link #DIRECTION_SOURCE} or {@link #DIRECTION_DESTINATION}
+     * @return the match as printed by {@code iptables-save}, after any address and interface match
+     */
+    public String getMatch(String direction)
+    {
+        return String.format("-m set --match-set %s %s", name, direction);
+    }
+
+    /**
+     * @param output of {@link #getSaveCommand()}
+     */
+    public Set<String> parseMembers(String output)
+    {
+        final Set<String> members = new TreeSet<>();
+        if (output == null) return members;
+        final String prefix = SAVE_ADD_PREFIX + name + ' ';
+        for (String line : output.split("\n"))
+        {
+            line = line.trim();
+            if (line.startsWith(prefix)) members.add(line.substring(prefix.length()).trim());
+        }
+        return members;
+    }
+
+    /**
+     * @return a single command adding the missing members and removing the others, {@code null} if there's nothing
+     *         to change
+     */
+    public String getUpdateCommand(Collection<String> current, Collection<String> desired)
+    {
+        final StringBuilder payload = new StringBuilder();
+        for (String member : desired)
+            if (!current.contains(member)) payload.append("add ").append(name).append(' ').append(member).append('\n');
+        for (String member : current)
+            if (!desired.contains(member)) payload.append("del ").append(name).append(' ').append(member).append('\n');
+        if (payload.length() == 0) return null;
+        return String.format("%s restore -exist <<'%s'\n%s%s", BINARY, HEREDOC_DELIMITER, payload, HEREDOC_DELIMITER);
+    }
+
+    @Override
+    public String toString()
+    {
+        return String.format("%s (%s)", name, type);
+    }
+}
@@ -0,0 +1,60 @@
+/*
+ * The MIT License (MIT)
+ *
+ * Copyright (c) 2014 Eugenio Marletti
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in
+ * all copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN
+ * THE SOFTWARE.
+ */
+
+package me.eugeniomarletti.tetheringfixer.netfilter;
+
+/**
+ * The binaries handling the rules of one address family, and its name for nftables.
+ */
+public final class IptablesFamily
+{
+    public static final IptablesFamily IPV4 = new IptablesFamily("IPv4", "iptables", "ip");
+    public static final IptablesFamily IPV6 = new IptablesFamily("IPv6", "ip6tables", "ip6");
+
+    public final String name;
+    public final String binary;
+    public final String saveBinary;
+    public final String restoreBinary;
+    public final String nftFamily;
+
+    public IptablesFamily(String name, String binary, String saveBinary, String restoreBinary, String nftFamily)
+    {
+        this.name = name;
+        this.binary = binary;
+        this.saveBinary = saveBinary;
+        this.restoreBinary = restoreBinary;
+        this.nftFamily = nftFamily;
+    }
+
+    private IptablesFamily(String name, String binary, String nftFamily)
+    {
+        this(name, binary, binary + "-save", binary + "-restore", nftFamily);
+    }
+
+    @Override
+    public String toString()
+    {
+        return name;
+    }
+}
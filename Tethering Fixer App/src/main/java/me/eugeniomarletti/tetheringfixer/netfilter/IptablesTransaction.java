@@ -0,0 +1,163 @@
+/*
+ * The MIT License (MIT)
+ *
+ * Copyright (c) 2014 Eugenio Marletti
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in
+ * all copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN
+ * THE SOFTWARE.
+ */
+
+package me.eugeniomarletti.tetheringfixer.netfilter;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+
+/**
+ * A set of changes to a single table, compiled into one {@code iptables-restore --noflush} payload so that the kernel
+ * gets them as a single table replace: either all of them are applied or none is.
+ * Can also be compiled into the equivalent list of plain {@code iptables} commands, for when the restore binary isn't
+ * available.
+ */
+public final class IptablesTransaction
+{
+    // http://ipset.netfilter.org/iptables-restore.man.html
+
+    private static final String HEREDOC_DELIMITER = "__TF_COMMIT__";
+
+    public static final String OPERATION_APPEND       = "A";
+    public static final String OPERATION_INSERT       = "I";
+    public static final String OPERATION_DELETE       = "D";
+    public static final String OPERATION_FLUSH        = "F";
+    public static final String OPERATION_DELETE_CHAIN = "X";
+
+    public final String table;
+
+    private final List<String> newChains  = new ArrayList<>();
+    private final List<String> operations = new ArrayList<>();
+
+    public IptablesTransaction(String table)
+    {
+        this.table = table;
+    }
+
+    private IptablesTransaction add(String operation, String chain, String rule)
+    {
+        operations.add(String.format("-%s %s %s", operation, chain, rule));
+        return this;
+    }
+
+    public IptablesTransaction append(String chain, String rule)
+    {
+        return add(OPERATION_APPEND, chain, rule);
+    }
+
+    /**
+     * @param position 1-based, as in {@code iptables -I}
+     */
+    public IptablesTransaction insert(String chain, int position, String rule)
+    {
+        return add(OPERATION_INSERT, chain + " " + position, rule);
+    }
+
+    /**
+     * Note that deleting a rule that doesn't exist makes the whole transaction fail.
+     */
+    public IptablesTransaction delete(String chain, String rule)
+    {
+        return add(OPERATION_DELETE, chain, rule);
+    }
+
+    /**
+     * Only for chains that don't exist yet: with {@code --noflush}, declaring an existing chain flushes it.
+     */
+    public IptablesTransaction newChain(String chain)
+    {
+        newChains.add(chain);
+        return this;
+    }
+
+    /**
+     * Removes all the rules from the chain.
+     */
+    public IptablesTransaction flush(String chain)
+    {
+        operations.add(String.format("-%s %s", OPERATION_FLUSH, chain));
+        return this;
+    }
+
+    /**
+     * The chain must be empty and not referenced by any rule.
+     */
+    public IptablesTransaction deleteChain(String chain)
+    {
+        operations.add(String.format("-%s %s", OPERATION_DELETE_CHAIN, chain));
+        return this;
+    }
+
+    public boolean isEmpty()
+    {
+        return newChains.isEmpty() && operations.isEmpty();
+    }
+
+    public int size()
+    {
+        return newChains.size() + operations.size();
+    }
+
+    public List<String> getOperations()
+    {
+        return Collections.unmodifiableList(operations);
+    }
+
+    /**
+     * @return the input for {@code iptables-restore}
+     */
+    public String getPayload()
+    {
+        final StringBuilder payload = new StringBuilder();
+        payload.append('*').append(table).append('\n');
+        for (String chain : newChains) payload.append(':').append(chain).append(" - [0:0]\n");
+        for (String operation : operations) payload.append(operation).append('\n');
+        payload.append("COMMIT\n");
+        return payload.toString();
+    }
+
+    /**
+     * @param restoreBinary usually {@code iptables-restore}
+     * @return a single shell command streaming the payload to the restore binary through its stdin
+     */
+    public String getRestoreCommand(String restoreBinary)
+    {
+        return String.format("%s --noflush <<'%s'\n%s%s", restoreBinary, HEREDOC_DELIMITER, getPayload(),
+                             HEREDOC_DELIMITER);
+    }
+
+    /**
+     * @param binary usually {@code iptables}
+     * @return the same operations as separate commands, not atomic
+     */
+    public String[] getCommands(String binary)
+    {
+        final String[] commands = new String[newChains.size() + operations.size()];
+        int i = 0;
+        for (String chain : newChains) commands[i++] = String.format("%s -t %s -N %s", binary, table, chain);
+        for (String operation : operations) commands[i++] = String.format("%s -t %s %s", binary, table, operation);
+        return commands;
+    }
+}
@@ -0,0 +1,97 @@
+/*
+ * The MIT License (MIT)
+ *
+ * Copyright (c) 2014 Eugenio Marletti
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in
+ * all copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN
+ * THE SOFTWARE.
+ */
+
+package me.eugeniomarletti.tetheringfixer.netfilter;
+
+import me.eugeniomarletti.tetheringfixer.command.BatchCommand;
+import me.eugeniomarletti.tetheringfixer.command.CommandException;
+import me.eugeniomarletti.tetheringfixer.command.CommandNotFoundException;
+import me.eugeniomarletti.tetheringfixer.command.CommandNotOkException;
+import me.eugeniomarletti.tetheringfixer.command.CommandResult;
+import me.eugeniomarletti.tetheringfixer.command.CommandRunner;
+
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.Iterator;
+import java.util.List;
+
+/**
+ * Commits the changes to a table of ours as a single {@link NftTransaction} made of parts, some of which are optional
+ * (e.g. the IPv6 rules, on kernels that might not support them): if nft rejects the batch, the optional parts are
+ * given up and the rest is tried again, so that they can't keep the required ones from being applied.
+ */
+public final class NftBatch
+{
+    public interface Part
+    {
+        /**
+         * @return whether the whole batch fails rather than go without this part
+         */
+        public boolean isRequired();
+
+        /**
+         * Adds the changes of this part; called again on every attempt.
+         */
+        public void addTo(NftTransaction transaction);
+
+        /**
+         * Called when the part is left out of the next attempt, as the batch failed with it.
+         */
+        public void giveUp(CommandNotOkException error);
+    }
+
+    private NftBatch() { }
+
+    /**
+     * @return the transaction that went through, {@code null} if there was nothing to do
+     * @throws CommandNotOkException if the batch failed with no optional part left to give up
+     */
+    public static NftTransaction commit(CommandRunner runner, String table, Collection<? extends Part> parts)
+            throws IOException, CommandException
+    {
+        final List<Part> remaining = new ArrayList<>(parts);
+        while (true)
+        {
+            final NftTransaction transaction = new NftTransaction(table);
+            for (Part part : remaining) part.addTo(transaction);
+            if (transaction.isEmpty()) return null;
+
+            final CommandResult result = runner.runAll(new BatchCommand(transaction.getCommand()))[0];
+            CommandNotFoundException.throwIfNotFound(result);
+            if (result.exitcode == CommandNotOkException.RETURN_CODE_COMMAND_OK) return transaction;
+            final CommandNotOkException error = new CommandNotOkException(result);
+            boolean givenUp = false;
+            for (Iterator<Part> i = remaining.iterator(); i.hasNext(); )
+            {
+                final Part part = i.next();
+                if (part.isRequired()) continue;
+                i.remove();
+                part.giveUp(error);
+                givenUp = true;
+            }
+            if (!givenUp) throw error;
+        }
+    }
+}
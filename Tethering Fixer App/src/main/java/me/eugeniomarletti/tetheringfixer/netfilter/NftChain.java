@@ -0,0 +1,71 @@
+/*
+ * The MIT License (MIT)
+ *
+ * Copyright (c) 2014 Eugenio Marletti
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in
+ * all copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN
+ * THE SOFTWARE.
+ */
+
+package me.eugeniomarletti.tetheringfixer.netfilter;
+
+/**
+ * A base chain of an nftables table: unlike iptables, where the chains of each table are built in, it's attached to
+ * its hook only when declared, so we own it along with the table.
+ */
+public final class NftChain
+{
+    // https://wiki.nftables.org/wiki-nftables/index.php/Netfilter_hooks
+
+    public static final String TYPE_FILTER = "filter";
+    public static final String TYPE_NAT    = "nat";
+
+    public static final String HOOK_FORWARD     = "forward";
+    public static final String HOOK_POSTROUTING = "postrouting";
+
+    // numeric, as older versions of nft don't know the names
+    public static final int PRIORITY_MANGLE = -150;
+    public static final int PRIORITY_SRCNAT = 100;
+
+    public final String name;
+    public final String type;
+    public final String hook;
+    public final int    priority;
+
+    public NftChain(String name, String type, String hook, int priority)
+    {
+        this.name = name;
+        this.type = type;
+        this.hook = hook;
+        this.priority = priority;
+    }
+
+    /**
+     * @return what follows the name in {@code add chain}
+     */
+    public String getDeclaration()
+    {
+        return String.format("{ type %s hook %s priority %d; policy accept; }", type, hook, priority);
+    }
+
+    @Override
+    public String toString()
+    {
+        return String.format("%s (%s %s %d)", name, type, hook, priority);
+    }
+}
@@ -0,0 +1,134 @@
+/*
+ * The MIT License (MIT)
+ *
+ * Copyright (c) 2014 Eugenio Marletti
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in
+ * all copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN
+ * THE SOFTWARE.
+ */
+
+package me.eugeniomarletti.tetheringfixer.netfilter;
+
+import org.json.JSONArray;
+import org.json.JSONException;
+import org.json.JSONObject;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+
+/**
+ * Read-only view of a table of ours as listed by {@code nft -j}, indexed by the comment of each rule.
+ */
+public final class NftSnapshot
+{
+    // printed by nft when the table doesn't exist yet
+    private static final String ERROR_NO_SUCH_TABLE = "No such file or directory";
+
+    public final String family;
+    public final String table;
+    public final long   timestamp;
+
+    private final Set<String>             chains  = new HashSet<>();
+    private final Map<String, List<Long>> handles = new HashMap<>();
+    private       int                     size    = 0;
+
+    private NftSnapshot(String family, String table)
+    {
+        this.family = family;
+        this.table = table;
+        this.timestamp = System.currentTimeMillis();
+    }
+
+    /**
+     * @param family e.g. {@code ip} or {@code ip6}
+     * @return a command printing the table as JSON, errors included
+     */
+    public static String getListCommand(String family, String table)
+    {
+        return String.format("%s -j list table %s %s 2>&1", NftTransaction.BINARY, family, table);
+    }
+
+    /**
+     * @param output of a failed {@link #getListCommand(String, String)}
+     * @return whether it only failed because the table doesn't exist
+     */
+    public static boolean isNoSuchTable(String output)
+    {
+        return output != null && output.contains(ERROR_NO_SUCH_TABLE);
+    }
+
+    /**
+     * @return the snapshot of a table that doesn't exist
+     */
+    public static NftSnapshot empty(String family, String table)
+    {
+        return new NftSnapshot(family, table);
+    }
+
+    /**
+     * @param output of a successful {@link #getListCommand(String, String)}
+     */
+    public static NftSnapshot parse(String family, String table, String output) throws JSONException
+    {
+        final NftSnapshot snapshot = new NftSnapshot(family, table);
+        final JSONArray objects = new JSONObject(output).getJSONArray("nftables");
+        for (int i = 0; i < objects.length(); i++)
+        {
+            final JSONObject object = objects.getJSONObject(i);
+            final JSONObject chain = object.optJSONObject("chain");
+            if (chain != null) snapshot.chains.add(chain.getString("name"));
+            final JSONObject rule = object.optJSONObject("rule");
+            if (rule == null) continue;
+            final String key = Rule.getKey(rule.getString("chain"), rule.optString("comment"));
+            List<Long> handles = snapshot.handles.get(key);
+            if (handles == null) snapshot.handles.put(key, handles = new ArrayList<>(1));
+            handles.add(rule.getLong("handle"));
+            snapshot.size++;
+        }
+        return snapshot;
+    }
+
+    public boolean hasChain(String chain)
+    {
+        return chains.contains(chain);
+    }
+
+    public boolean contains(String chain, String comment)
+    {
+        return handles.containsKey(Rule.getKey(chain, comment));
+    }
+
+    /**
+     * @return the handles of all the copies of the rule in the chain, in order
+     */
+    public List<Long> getHandles(String chain, String comment)
+    {
+        final List<Long> handles = this.handles.get(Rule.getKey(chain, comment));
+        return handles == null ? Collections.<Long>emptyList() : Collections.unmodifiableList(handles);
+    }
+
+    public int size()
+    {
+        return size;
+    }
+}
@@ -0,0 +1,121 @@
+/*
+ * The MIT License (MIT)
+ *
+ * Copyright (c) 2014 Eugenio Marletti
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in
+ * all copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN
+ * THE SOFTWARE.
+ */
+
+package me.eugeniomarletti.tetheringfixer.netfilter;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.LinkedHashSet;
+import java.util.List;
+import java.util.Set;
+
+/**
+ * A set of changes to a table of ours in any of the families, compiled into one {@code nft -f} batch: the kernel
+ * gets them as a single transaction, so either all of them are applied or none is.
+ * Rules are told apart by their comment, as the rule printed back by nft can differ from the one we added.
+ */
+public final class NftTransaction
+{
+    // https://www.netfilter.org/projects/nftables/manpage.html
+
+    public static final String BINARY = "nft";
+
+    private static final String HEREDOC_DELIMITER = "__TF_NFT__";
+
+    public final String table;
+
+    private final Set<String>  families   = new LinkedHashSet<>();
+    private final Set<String>  newChains  = new LinkedHashSet<>();
+    private final List<String> operations = new ArrayList<>();
+
+    public NftTransaction(String table)
+    {
+        this.table = table;
+    }
+
+    /**
+     * Declaring a chain that already exists with the same hook does nothing, and declaring it twice here only adds it
+     * once.
+     *
+     * @param family e.g. {@code ip} or {@code ip6}, the table is created in it if needed
+     */
+    public NftTransaction newChain(String family, NftChain chain)
+    {
+        families.add(family);
+        newChains.add(String.format("add chain %s %s %s %s", family, table, chain.name, chain.getDeclaration()));
+        return this;
+    }
+
+    /**
+     * @param rule    e.g. {@code oifname "rmnet0" masquerade}
+     * @param comment what the rule is found by, mustn't contain double quotes
+     */
+    public NftTransaction add(String family, String chain, String rule, String comment)
+    {
+        if (comment.indexOf('"') >= 0) throw new IllegalArgumentException("Invalid comment: " + comment);
+        families.add(family);
+        operations.add(String.format("add rule %s %s %s %s comment \"%s\"", family, table, chain, rule, comment));
+        return this;
+    }
+
+    /**
+     * @param handle as found in the listing of the table
+     */
+    public NftTransaction delete(String family, String chain, long handle)
+    {
+        operations.add(String.format("delete rule %s %s %s handle %d", family, table, chain, handle));
+        return this;
+    }
+
+    public boolean isEmpty()
+    {
+        return newChains.isEmpty() && operations.isEmpty();
+    }
+
+    public List<String> getOperations()
+    {
+        return Collections.unmodifiableList(operations);
+    }
+
+    /**
+     * @return the input for {@code nft -f}
+     */
+    public String getPayload()
+    {
+        final StringBuilder payload = new StringBuilder();
+        // does nothing if the table already exists
+        for (String family : families) payload.append(String.format("add table %s %s\n", family, table));
+        for (String chain : newChains) payload.append(chain).append('\n');
+        for (String operation : operations) payload.append(operation).append('\n');
+        return payload.toString();
+    }
+
+    /**
+     * @return a single shell command streaming the payload to nft through its stdin
+     */
+    public String getCommand()
+    {
+        return String.format("%s -f - <<'%s'\n%s%s", BINARY, HEREDOC_DELIMITER, getPayload(), HEREDOC_DELIMITER);
+    }
+}
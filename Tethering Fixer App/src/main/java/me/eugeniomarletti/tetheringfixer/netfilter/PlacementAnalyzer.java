@@ -0,0 +1,186 @@
+/*
+ * The MIT License (MIT)
+ *
+ * Copyright (c) 2014 Eugenio Marletti
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in
+ * all copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN
+ * THE SOFTWARE.
+ */
+
+package me.eugeniomarletti.tetheringfixer.netfilter;
+
+import java.util.Collection;
+import java.util.List;
+
+/**
+ * Works out how early in its chain a rule can go without changing what happens to any packet, so that the packets it
+ * matches don't have to go through all the rules before it first.
+ * A rule can be put ahead of another only if no packet can match both: that is, if they're on different output
+ * interfaces or their source or destination subnets don't overlap. Anything else, negations and matches we can't
+ * reason about included, keeps the rule behind, whatever its target.
+ */
+public final class PlacementAnalyzer
+{
+    private static final String OPTION_SOURCE           = "-s";
+    private static final String OPTION_DESTINATION      = "-d";
+    private static final String OPTION_OUTPUT_INTERFACE = "-o";
+    private static final String NEGATION                = "!";
+    private static final char   INTERFACE_WILDCARD      = '+';
+
+    private PlacementAnalyzer() { }
+
+    /**
+     * Where a rule goes, and how many rules the packets it matches go through to reach it (itself included), compared
+     * with appending it at the tail.
+     */
+    public static final class Placement
+    {
+        public final String  chain;
+        public final String  spec;
+        public final int     position;    // 1-based, where it is or the earliest correct one in the snapshot
+        public final int     depthBefore; // at the tail of the chain
+        public final int     depthAfter;  // at the position
+        public final boolean present;
+
+        private Placement(String chain, String spec, int position, int depthBefore, boolean present)
+        {
+            this.chain = chain;
+            this.spec = spec;
+            this.position = position;
+            this.depthBefore = depthBefore;
+            this.depthAfter = position;
+            this.present = present;
+        }
+
+        /**
+         * @return the position for a {@link DesiredRule}, only used if the rule is missing
+         */
+        public int getDesiredPosition()
+        {
+            return depthAfter < depthBefore ? position : DesiredRule.POSITION_APPEND;
+        }
+
+        @Override
+        public String toString()
+        {
+            return String.format("%s %s: depth %d -> %d", chain, spec, depthBefore, depthAfter);
+        }
+    }
+
+    /**
+     * If the rule is already in the chain it's left where its first copy is: moving it would reset its counters and
+     * the chain is rewritten often enough anyway.
+     *
+     * @param ignored specs that don't hold the rule back, e.g. rules about to be removed
+     */
+    public static Placement analyze(TableSnapshot snapshot, String chain, String spec, Collection<String> ignored)
+    {
+        final String normalized = Rule.normalize(spec);
+        final String[] tokens = normalized.split(" ");
+        final List<Rule> rules = snapshot.getRules(chain);
+        int position = 1; // right after the last rule we can't go ahead of
+        for (Rule rule : rules)
+        {
+            // once past the rule, the others can't see its packets anyway
+            if (rule.spec.equals(normalized))
+                return new Placement(chain, normalized, rule.position, rules.size(), true);
+            if (ignored != null && ignored.contains(rule.spec)) continue;
+            if (!isDisjoint(tokens, rule.spec.split(" "))) position = rule.position + 1;
+        }
+        return new Placement(chain, normalized, position, rules.size() + 1, false);
+    }
+
+    /**
+     * @return whether no packet can match both specs
+     */
+    static boolean isDisjoint(String[] a, String[] b)
+    {
+        if (isNegated(a) || isNegated(b)) return false;
+        final String aInterface = getOption(a, OPTION_OUTPUT_INTERFACE);
+        final String bInterface = getOption(b, OPTION_OUTPUT_INTERFACE);
+        if (aInterface != null && bInterface != null && !isInterfaceOverlapping(aInterface, bInterface)) return true;
+        return isSubnetDisjoint(getOption(a, OPTION_SOURCE), getOption(b, OPTION_SOURCE))
+               || isSubnetDisjoint(getOption(a, OPTION_DESTINATION), getOption(b, OPTION_DESTINATION));
+    }
+
+    private static boolean isNegated(String[] tokens)
+    {
+        for (String token : tokens)
+            if (NEGATION.equals(token)) return true;
+        return false;
+    }
+
+    private static String getOption(String[] tokens, String option)
+    {
+        for (int i = 0; i < tokens.length - 1; i++)
+            if (option.equals(tokens[i])) return tokens[i + 1];
+        return null;
+    }
+
+    private static boolean isInterfaceOverlapping(String a, String b)
+    {
+        final boolean aWildcard = a.charAt(a.length() - 1) == INTERFACE_WILDCARD;
+        final boolean bWildcard = b.charAt(b.length() - 1) == INTERFACE_WILDCARD;
+        final String aName = aWildcard ? a.substring(0, a.length() - 1) : a;
+        final String bName = bWildcard ? b.substring(0, b.length() - 1) : b;
+        if (aWildcard && bName.startsWith(aName)) return true;
+        if (bWildcard && aName.startsWith(bName)) return true;
+        return aName.equals(bName);
+    }
+
+    /**
+     * @return whether the subnets don't overlap; false if either is missing or not an IPv4 CIDR
+     */
+    private static boolean isSubnetDisjoint(String a, String b)
+    {
+        if (a == null || b == null) return false;
+        final long aSubnet = parseSubnet(a);
+        final long bSubnet = parseSubnet(b);
+        if (aSubnet < 0 || bSubnet < 0) return false;
+        final int prefix = (int)Math.min(aSubnet >>> 32, bSubnet >>> 32);
+        final int mask = prefix == 0 ? 0 : -1 << (32 - prefix);
+        return ((int)aSubnet & mask) != ((int)bSubnet & mask);
+    }
+
+    /**
+     * @return the prefix length in the upper 32 bits and the address in the lower ones, -1 if it can't be parsed
+     */
+    private static long parseSubnet(String cidr)
+    {
+        final int slash = cidr.indexOf('/');
+        final String[] octets = (slash < 0 ? cidr : cidr.substring(0, slash)).split("\\.");
+        if (octets.length != 4) return -1;
+        try
+        {
+            long address = 0;
+            for (String octet : octets)
+            {
+                final int value = Integer.parseInt(octet);
+                if (value < 0 || value > 255) return -1;
+                address = (address << 8) | value;
+            }
+            final int prefix = slash < 0 ? 32 : Integer.parseInt(cidr.substring(slash + 1));
+            if (prefix < 0 || prefix > 32) return -1;
+            return ((long)prefix << 32) | address;
+        }
+        catch (NumberFormatException e)
+        {
+            return -1;
+        }
+    }
+}
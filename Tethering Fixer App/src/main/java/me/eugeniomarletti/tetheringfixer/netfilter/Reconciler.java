@@ -0,0 +1,132 @@
+/*
+ * The MIT License (MIT)
+ *
+ * Copyright (c) 2014 Eugenio Marletti
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in
+ * all copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN
+ * THE SOFTWARE.
+ */
+
+package me.eugeniomarletti.tetheringfixer.netfilter;
+
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+
+/**
+ * Compares the rules we want with what's actually in a table, and works out the fewest operations to get there:
+ * missing rules are added, rules with extra copies (e.g. stacked by earlier {@code -A} runs) are brought back to a
+ * single one in the place of the first, everything else is left alone.
+ * When the table is already as desired the result is empty, so re-applying only costs the read of the snapshot.
+ */
+public final class Reconciler
+{
+    private Reconciler()
+    {
+    }
+
+    /**
+     * @param snapshot must be recent, as the operations are only valid against the rules it contains
+     * @param desired  all in the same table as the snapshot; a rule appearing more than once is considered once.
+     *                 Positions refer to the chains as they are in the snapshot.
+     * @return the operations turning the snapshot into the desired state, empty if there's nothing to do
+     */
+    public static IptablesTransaction reconcile(TableSnapshot snapshot, Collection<DesiredRule> desired)
+    {
+        final IptablesTransaction transaction = new IptablesTransaction(snapshot.table);
+        final Set<String> keys = new HashSet<>(desired.size() * 4 / 3 + 1);
+        final Set<String> duplicated = new HashSet<>();
+        final List<DesiredRule> missing = new ArrayList<>();
+
+        for (DesiredRule rule : desired)
+        {
+            if (!rule.table.equals(snapshot.table))
+                throw new IllegalArgumentException(String.format("Rule in table '%s' reconciled against '%s': %s",
+                                                                 rule.table, snapshot.table, rule));
+            if (!keys.add(rule.getKey())) continue;
+
+            final int count = snapshot.count(rule.chain, rule.spec);
+            if (count == 0) missing.add(rule);
+            else if (count > 1)
+            {
+                // deleting by spec always removes the first copy, but that's the one that matters as the others
+                // are never reached: delete them all and put one back where the first was
+                for (int i = 0; i < count; i++) transaction.delete(rule.chain, rule.spec);
+                duplicated.add(rule.getKey());
+            }
+        }
+
+        // positions of the extra copies, which are gone for good once the duplicates are sorted out
+        final Map<String, List<Integer>> removed = new HashMap<>();
+        if (!duplicated.isEmpty()) for (String chain : snapshot.getChainNames())
+        {
+            // positions in the chain as it is after the deletions, counting the copies already put back
+            int deleted = 0;
+            final Set<String> restored = new HashSet<>();
+            final List<Integer> extra = new ArrayList<>();
+            for (Rule rule : snapshot.getRules(chain))
+            {
+                final String key = rule.getKey();
+                if (!duplicated.contains(key)) continue;
+                if (restored.add(key)) transaction.insert(chain, rule.position - deleted + restored.size() - 1,
+                                                          rule.spec);
+                else extra.add(rule.position);
+                deleted++;
+            }
+            if (!extra.isEmpty()) removed.put(chain, extra);
+        }
+
+        // from the bottom of each chain up, so that no insertion moves the place of the next one
+        Collections.sort(missing, BY_POSITION_DESCENDING);
+        for (DesiredRule rule : missing)
+        {
+            if (rule.position == DesiredRule.POSITION_APPEND) transaction.append(rule.chain, rule.spec);
+            else transaction.insert(rule.chain, getPosition(rule, removed.get(rule.chain)), rule.spec);
+        }
+        return transaction;
+    }
+
+    /**
+     * @return the position of the rule in the chain without the extra copies
+     */
+    private static int getPosition(DesiredRule rule, List<Integer> removed)
+    {
+        int position = rule.position;
+        if (removed != null) for (int extra : removed)
+            if (extra < rule.position) position--;
+        return position;
+    }
+
+    // appends first (at the tail they move nothing), in order as the sort is stable
+    private static final Comparator<DesiredRule> BY_POSITION_DESCENDING = new Comparator<DesiredRule>()
+    {
+        @Override
+        public int compare(DesiredRule lhs, DesiredRule rhs)
+        {
+            final int lhsPosition = lhs.position == DesiredRule.POSITION_APPEND ? Integer.MAX_VALUE : lhs.position;
+            final int rhsPosition = rhs.position == DesiredRule.POSITION_APPEND ? Integer.MAX_VALUE : rhs.position;
+            return lhsPosition > rhsPosition ? -1 : lhsPosition == rhsPosition ? 0 : 1;
+        }
+    };
+}
@@ -0,0 +1,97 @@
+/*
+ * The MIT License (MIT)
+ *
+ * Copyright (c) 2014 Eugenio Marletti
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in
+ * all copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN
+ * THE SOFTWARE.
+ */
+
+package me.eugeniomarletti.tetheringfixer.netfilter;
+
+public final class Rule
+{
+    public static final long COUNTER_UNKNOWN = -1;
+
+    public final String chain;
+    public final String spec;
+    public final int    position; // 1-based, as in iptables --line-numbers
+    public final long   packets;
+    public final long   bytes;
+
+    public Rule(String chain, String spec, int position, long packets, long bytes)
+    {
+        this.chain = chain;
+        this.spec = normalize(spec);
+        this.position = position;
+        this.packets = packets;
+        this.bytes = bytes;
+    }
+
+    public Rule(String chain, String spec, int position)
+    {
+        this(chain, spec, position, COUNTER_UNKNOWN, COUNTER_UNKNOWN);
+    }
+
+    public String getKey()
+    {
+        return getKey(chain, spec);
+    }
+
+    public static String getKey(String chain, String spec)
+    {
+        return chain + ' ' + normalize(spec);
+    }
+
+    /**
+     * Trims and collapses whitespace, so that specs can be compared as strings.
+     * Doesn't reorder anything: specs are expected in the canonical form printed by {@code iptables-save}.
+     */
+    public static String normalize(String spec)
+    {
+        final int length = spec.length();
+        boolean clean = length == 0 || (spec.charAt(0) != ' ' && spec.charAt(length - 1) != ' ');
+        for (int i = 0; clean && i < length; i++)
+        {
+            final char c = spec.charAt(i);
+            if (c == '\t' || (c == ' ' && i > 0 && spec.charAt(i - 1) == ' ')) clean = false;
+        }
+        if (clean) return spec;
+
+        final StringBuilder normalized = new StringBuilder(length);
+        boolean space = false;
+        for (int i = 0; i < length; i++)
+        {
+            final char c = spec.charAt(i);
+            if (c == ' ' || c == '\t') space = normalized.length() > 0;
+            else
+            {
+                if (space) normalized.append(' ');
+                normalized.append(c);
+                space = false;
+            }
+        }
+        return normalized.toString();
+    }
+
+    @Override
+    public String toString()
+    {
+        return String.format("%d: -A %s %s [%d:%d]", position, chain, spec, packets, bytes);
+    }
+}
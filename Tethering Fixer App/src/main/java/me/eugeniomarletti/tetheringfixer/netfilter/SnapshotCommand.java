@@ -0,0 +1,89 @@
+/*
+ * The MIT License (MIT)
+ *
+ * Copyright (c) 2014 Eugenio Marletti
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in
+ * all copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN
+ * THE SOFTWARE.
+ */
+
+package me.eugeniomarletti.tetheringfixer.netfilter;
+
+import me.eugeniomarletti.tetheringfixer.command.BatchCommand;
+
+/**
+ * Dumps one or more tables through {@code iptables-save} (or {@code ip6tables-save}...) in a single round-trip,
+ * parsing the output as it arrives instead of accumulating it.
+ * Where there's no save binary, {@code iptables -S} lists the same rules, only without the counters.
+ */
+public class SnapshotCommand extends BatchCommand
+{
+    private final SnapshotParser[] parsers;
+
+    /**
+     * @param saveBinaries usually {@code iptables-save}, one dump for each
+     * @param tables       the table to dump for each binary
+     * @param listed       for each binary, whether it's iptables itself (with any options) listing the table instead
+     */
+    public SnapshotCommand(String[] saveBinaries, String[] tables, boolean[] listed)
+    {
+        super(getCommands(saveBinaries, tables, listed));
+        parsers = new SnapshotParser[saveBinaries.length];
+        for (int i = 0; i < parsers.length; i++) parsers[i] = new SnapshotParser(tables[i]);
+    }
+
+    public SnapshotCommand(String[] saveBinaries, String[] tables)
+    {
+        this(saveBinaries, tables, new boolean[saveBinaries.length]);
+    }
+
+    public SnapshotCommand(String saveBinary, String table)
+    {
+        this(new String[]{saveBinary}, new String[]{table});
+    }
+
+    private static String[] getCommands(String[] saveBinaries, String[] tables, boolean[] listed)
+    {
+        final String[] commands = new String[saveBinaries.length];
+        for (int i = 0; i < commands.length; i++)
+            // the listing is wrapped like a dump, keeping the exit code of iptables if it fails
+            commands[i] = listed[i] ? String.format("echo '*%2$s' && %1$s -t %2$s -S && echo COMMIT", saveBinaries[i],
+                                                    tables[i])
+                                    : String.format("%s -c -t %s", saveBinaries[i], tables[i]);
+        return commands;
+    }
+
+    @Override
+    protected void batchOutput(int index, String line)
+    {
+        parsers[index].feed(line);
+    }
+
+    public SnapshotParser getParser(int index)
+    {
+        return parsers[index];
+    }
+
+    /**
+     * @return the parsed table, only valid if the dump at the same index completed successfully
+     */
+    public TableSnapshot getSnapshot(int index)
+    {
+        return parsers[index].finish();
+    }
+}
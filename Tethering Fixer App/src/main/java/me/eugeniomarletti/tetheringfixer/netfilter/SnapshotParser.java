@@ -0,0 +1,182 @@
+/*
+ * The MIT License (MIT)
+ *
+ * Copyright (c) 2014 Eugenio Marletti
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in
+ * all copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN
+ * THE SOFTWARE.
+ */
+
+package me.eugeniomarletti.tetheringfixer.netfilter;
+
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+
+/**
+ * Incremental parser for the output of {@code iptables-save [-c]}: lines are fed one at a time as they are read, so
+ * the dump is never buffered as a whole. Only the requested table is kept, everything else is skipped.
+ */
+public final class SnapshotParser
+{
+    // http://ipset.netfilter.org/iptables-save.man.html
+
+    public final String table;
+
+    private final Map<String, List<Rule>> chains   = new LinkedHashMap<>();
+    private final Map<String, String>     policies = new HashMap<>();
+
+    private boolean inTable  = false;
+    private boolean found    = false;
+    private boolean finished = false;
+    private int     lines    = 0;
+
+    // used by parseCounters()
+    private long packets;
+    private long bytes;
+
+    public SnapshotParser(String table)
+    {
+        this.table = table;
+    }
+
+    public void feed(String line)
+    {
+        if (finished) throw new IllegalStateException("Parser already finished.");
+        lines++;
+        if (line == null) return;
+        final int length = line.length();
+        int i = skipSpaces(line, 0);
+        if (i >= length) return;
+
+        switch (line.charAt(i))
+        {
+            case '#': return;
+
+            case '*':
+            {
+                inTable = table.equals(line.substring(i + 1).trim());
+                found |= inTable;
+                return;
+            }
+        }
+
+        if (!inTable) return;
+
+        if (line.startsWith("COMMIT", i))
+        {
+            inTable = false;
+            return;
+        }
+
+        if (line.charAt(i) == ':') // ":CHAIN POLICY [packets:bytes]"
+        {
+            final int nameEnd = indexOfSpace(line, i + 1);
+            final String chain = line.substring(i + 1, nameEnd);
+            getChain(chain);
+            final int policyStart = skipSpaces(line, nameEnd);
+            if (policyStart < length) policies.put(chain, line.substring(policyStart, indexOfSpace(line, policyStart)));
+            return;
+        }
+
+        packets = Rule.COUNTER_UNKNOWN;
+        bytes = Rule.COUNTER_UNKNOWN;
+        if (line.charAt(i) == '[') i = skipSpaces(line, parseCounters(line, i));
+
+        if (!line.startsWith("-A ", i)) return; // nothing else is expected in a dump
+        final int chainStart = skipSpaces(line, i + 3);
+        final int chainEnd = indexOfSpace(line, chainStart);
+        final String chain = line.substring(chainStart, chainEnd);
+        final List<Rule> rules = getChain(chain);
+        rules.add(new Rule(chain, line.substring(skipSpaces(line, chainEnd)), rules.size() + 1, packets, bytes));
+    }
+
+    /**
+     * @return the index right after the closing bracket
+     */
+    private int parseCounters(String line, int start)
+    {
+        final int length = line.length();
+        long value = 0;
+        int i = start + 1;
+        for (; i < length; i++)
+        {
+            final char c = line.charAt(i);
+            if (c >= '0' && c <= '9') value = value * 10 + (c - '0');
+            else if (c == ':')
+            {
+                packets = value;
+                value = 0;
+            }
+            else if (c == ']')
+            {
+                bytes = value;
+                return i + 1;
+            }
+        }
+        return i;
+    }
+
+    private List<Rule> getChain(String chain)
+    {
+        List<Rule> rules = chains.get(chain);
+        if (rules == null)
+        {
+            rules = new ArrayList<>();
+            chains.put(chain, rules);
+        }
+        return rules;
+    }
+
+    private static int skipSpaces(String line, int start)
+    {
+        final int length = line.length();
+        int i = start;
+        while (i < length && (line.charAt(i) == ' ' || line.charAt(i) == '\t')) i++;
+        return i;
+    }
+
+    private static int indexOfSpace(String line, int start)
+    {
+        final int length = line.length();
+        int i = start;
+        while (i < length && line.charAt(i) != ' ' && line.charAt(i) != '\t') i++;
+        return i;
+    }
+
+    public int getLinesRead()
+    {
+        return lines;
+    }
+
+    /**
+     * @return whether the table was found in the dump
+     */
+    public boolean isFound()
+    {
+        return found;
+    }
+
+    public TableSnapshot finish()
+    {
+        finished = true;
+        return new TableSnapshot(table, chains, policies);
+    }
+}
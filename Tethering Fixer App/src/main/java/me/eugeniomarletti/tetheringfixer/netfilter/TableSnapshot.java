@@ -0,0 +1,123 @@
+/*
+ * The MIT License (MIT)
+ *
+ * Copyright (c) 2014 Eugenio Marletti
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in
+ * all copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN
+ * THE SOFTWARE.
+ */
+
+package me.eugeniomarletti.tetheringfixer.netfilter;
+
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+
+/**
+ * Read-only view of a table at the time it was dumped, indexed so that rule lookups don't need to fork anything.
+ */
+public final class TableSnapshot
+{
+    public final String table;
+    public final long   timestamp;
+
+    private final Map<String, List<Rule>> chains;
+    private final Map<String, String>     policies;
+    private final Map<String, Integer>    ruleCounts;
+
+    TableSnapshot(String table, Map<String, List<Rule>> chains, Map<String, String> policies)
+    {
+        this.table = table;
+        this.timestamp = System.currentTimeMillis();
+        this.chains = chains;
+        this.policies = policies;
+
+        int size = 0;
+        for (List<Rule> rules : chains.values()) size += rules.size();
+        ruleCounts = new HashMap<>(size * 4 / 3 + 1);
+        for (List<Rule> rules : chains.values())
+            for (Rule rule : rules)
+            {
+                final String key = rule.getKey();
+                final Integer count = ruleCounts.get(key);
+                ruleCounts.put(key, count == null ? 1 : count + 1);
+            }
+    }
+
+    public boolean contains(String chain, String spec)
+    {
+        return count(chain, spec) > 0;
+    }
+
+    /**
+     * @return how many copies of the rule are in the chain
+     */
+    public int count(String chain, String spec)
+    {
+        final Integer count = ruleCounts.get(Rule.getKey(chain, spec));
+        return count == null ? 0 : count;
+    }
+
+    public boolean hasChain(String chain)
+    {
+        return chains.containsKey(chain);
+    }
+
+    public Set<String> getChainNames()
+    {
+        return Collections.unmodifiableSet(chains.keySet());
+    }
+
+    /**
+     * @return the rules in evaluation order, empty if the chain doesn't exist
+     */
+    public List<Rule> getRules(String chain)
+    {
+        final List<Rule> rules = chains.get(chain);
+        return rules == null ? Collections.<Rule>emptyList() : Collections.unmodifiableList(rules);
+    }
+
+    /**
+     * @return the first copy of the rule in the chain, or {@code null}
+     */
+    public Rule find(String chain, String spec)
+    {
+        if (!contains(chain, spec)) return null;
+        final String normalized = Rule.normalize(spec);
+        for (Rule rule : getRules(chain))
+            if (rule.spec.equals(normalized)) return rule;
+        return null;
+    }
+
+    /**
+     * @return the policy of a built-in chain, {@code "-"} for user-defined ones or {@code null} if missing
+     */
+    public String getPolicy(String chain)
+    {
+        return policies.get(chain);
+    }
+
+    public int size()
+    {
+        int size = 0;
+        for (List<Rule> rules : chains.values()) size += rules.size();
+        return size;
+    }
+}
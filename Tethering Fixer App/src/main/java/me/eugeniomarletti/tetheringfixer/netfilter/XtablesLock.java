@@ -0,0 +1,84 @@
+/*
+ * The MIT License (MIT)
+ *
+ * Copyright (c) 2014 Eugenio Marletti
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in
+ * all copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN
+ * THE SOFTWARE.
+ */
+
+package me.eugeniomarletti.tetheringfixer.netfilter;
+
+import java.util.Random;
+
+/**
+ * The lock iptables takes on {@code /system/etc/xtables.lock} while changing a table: netd and firewall apps hold it
+ * through whole reloads, and without waiting for it our commands just fail.
+ * Where the binaries can wait for it they're told to, otherwise failed commands are tried again after a while.
+ */
+public final class XtablesLock
+{
+    // exit code of iptables when another process holds the lock, or it gave up waiting for it (XTF_RESOURCE_PROBLEM)
+    public static final int RETURN_CODE_LOCK_HELD = 4;
+
+    // including the first one
+    public static final int MAX_ATTEMPTS = 5;
+
+    private static final int WAIT_SECONDS         = 5;
+    private static final int WAIT_INTERVAL_MICROS = 100000;
+
+    private static final long BACKOFF_BASE = 100;  // ms
+    private static final long BACKOFF_MAX  = 3200; // ms
+
+    private XtablesLock() { }
+
+    /**
+     * @param timeout whether the binary takes a timeout for {@code -w} and the polling interval {@code -W}; without
+     *                them it waits for as long as it takes
+     * @return the options to put right after the binary
+     */
+    public static String getWaitOptions(boolean timeout)
+    {
+        return timeout ? String.format(" -w %d -W %d", WAIT_SECONDS, WAIT_INTERVAL_MICROS) : " -w";
+    }
+
+    /**
+     * Every command told to wait through {@link #getWaitOptions(boolean)} may do so before even starting, so a batch of
+     * them needs that much more than the usual command timeout, or the shell gets closed while they're still waiting.
+     *
+     * @param baseTimeout the timeout of the batch if nobody held the lock, in milliseconds
+     * @param commands    how many commands in the batch may wait for the lock
+     * @return the timeout for the batch, in milliseconds
+     */
+    public static int getBatchTimeout(int baseTimeout, int commands)
+    {
+        return baseTimeout + commands * WAIT_SECONDS * 1000;
+    }
+
+    /**
+     * Exponential, with half of it random so that whoever else is after the lock doesn't retry in step with us.
+     *
+     * @param attempt 0-based, the one that just failed
+     * @return how long to wait before the next attempt, in milliseconds
+     */
+    public static long getBackoff(int attempt, Random random)
+    {
+        final long ceiling = Math.min(BACKOFF_MAX, BACKOFF_BASE << Math.min(attempt, 16));
+        return ceiling / 2 + (long)(random.nextDouble() * (ceiling / 2));
+    }
+}
@@ -0,0 +1,219 @@
+/*
+ * The MIT License (MIT)
+ *
+ * Copyright (c) 2014 Eugenio Marletti
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in
+ * all copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN
+ * THE SOFTWARE.
+ */
+
+package me.eugeniomarletti.tetheringfixer.stats;
+
+/**
+ * Fixed-size history of cumulative packet and byte counters, kept as the deltas and rates between consecutive samples.
+ * Everything lives in primitive arrays allocated up front, so recording never allocates and the oldest samples are
+ * just overwritten.
+ * Not thread safe.
+ */
+public final class CounterRing
+{
+    public final int capacity;
+
+    private final long[] times;
+    private final long[] packetDeltas;
+    private final long[] byteDeltas;
+    private final long[] intervals; // since the previous sample
+
+    private int head = 0; // next to be written
+    private int size = 0;
+
+    // last cumulative sample, the baseline of the next delta
+    private boolean hasBase     = false;
+    private long    basePackets = 0;
+    private long    baseBytes   = 0;
+    private long    baseTime    = 0;
+
+    private long totalPackets = 0;
+    private long totalBytes   = 0;
+
+    public CounterRing(int capacity)
+    {
+        if (capacity <= 0) throw new IllegalArgumentException("Invalid capacity: " + capacity);
+        this.capacity = capacity;
+        times = new long[capacity];
+        packetDeltas = new long[capacity];
+        byteDeltas = new long[capacity];
+        intervals = new long[capacity];
+    }
+
+    /**
+     * @param time    in milliseconds, monotonic
+     * @param packets cumulative, as read from the rule
+     * @param bytes   cumulative, as read from the rule
+     */
+    public void add(long time, long packets, long bytes)
+    {
+        if (!hasBase)
+        {
+            rebase(time, packets, bytes);
+            return;
+        }
+        long packetDelta = packets - basePackets;
+        long byteDelta = bytes - baseBytes;
+        if (packetDelta < 0 || byteDelta < 0) // the rule was added again, counting from zero
+        {
+            packetDelta = packets;
+            byteDelta = bytes;
+        }
+        times[head] = time;
+        packetDeltas[head] = packetDelta;
+        byteDeltas[head] = byteDelta;
+        intervals[head] = time - baseTime;
+        head = (head + 1) % capacity;
+        if (size < capacity) size++;
+
+        totalPackets += packetDelta;
+        totalBytes += byteDelta;
+        basePackets = packets;
+        baseBytes = bytes;
+        baseTime = time;
+    }
+
+    /**
+     * Starts counting from the given values without recording a sample, e.g. when the rules being counted change.
+     */
+    public void rebase(long time, long packets, long bytes)
+    {
+        hasBase = true;
+        basePackets = packets;
+        baseBytes = bytes;
+        baseTime = time;
+    }
+
+    public void clear()
+    {
+        head = 0;
+        size = 0;
+        hasBase = false;
+        totalPackets = 0;
+        totalBytes = 0;
+    }
+
+    public int size()
+    {
+        return size;
+    }
+
+    /**
+     * @param index 0 for the oldest sample, {@code size() - 1} for the latest
+     */
+    private int slot(int index)
+    {
+        if (index < 0 || index >= size) throw new IndexOutOfBoundsException("Invalid index: " + index);
+        return (head - size + index + capacity) % capacity;
+    }
+
+    public long getTime(int index)
+    {
+        return times[slot(index)];
+    }
+
+    public long getPacketDelta(int index)
+    {
+        return packetDeltas[slot(index)];
+    }
+
+    public long getByteDelta(int index)
+    {
+        return byteDeltas[slot(index)];
+    }
+
+    /**
+     * @return bytes per second since the previous sample
+     */
+    public long getByteRate(int index)
+    {
+        return rate(slot(index));
+    }
+
+    private long rate(int slot)
+    {
+        return intervals[slot] > 0 ? byteDeltas[slot] * 1000 / intervals[slot] : 0;
+    }
+
+    public long getLatestByteRate()
+    {
+        return size == 0 ? 0 : getByteRate(size - 1);
+    }
+
+    public long getPeakByteRate()
+    {
+        long peak = 0;
+        for (int i = 0; i < size; i++) peak = Math.max(peak, rate(i));
+        return peak;
+    }
+
+    /**
+     * @return bytes per second over the samples in the buffer
+     */
+    public long getAverageByteRate()
+    {
+        long bytes = 0;
+        long elapsed = 0;
+        for (int i = 0; i < size; i++)
+        {
+            bytes += byteDeltas[i];
+            elapsed += intervals[i];
+        }
+        return elapsed > 0 ? bytes * 1000 / elapsed : 0;
+    }
+
+    /**
+     * @return whether any packet went through in the samples in the buffer
+     */
+    public boolean hasTraffic()
+    {
+        for (int i = 0; i < size; i++) if (packetDeltas[i] > 0) return true;
+        return false;
+    }
+
+    /**
+     * @return packets counted since the ring was created or cleared, including the ones no longer in the buffer
+     */
+    public long getTotalPackets()
+    {
+        return totalPackets;
+    }
+
+    public long getTotalBytes()
+    {
+        return totalBytes;
+    }
+
+    /**
+     * Copies the rates from the oldest to the latest without allocating.
+     *
+     * @return how many were copied, at most the length of the array (keeping the latest ones)
+     */
+    public int copyByteRates(long[] rates)
+    {
+        final int count = Math.min(size, rates.length);
+        for (int i = 0; i < count; i++) rates[i] = getByteRate(size - count + i);
+        return count;
+    }
+}
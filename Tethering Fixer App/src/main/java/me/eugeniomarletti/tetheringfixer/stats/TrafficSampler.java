@@ -0,0 +1,214 @@
+/*
+ * The MIT License (MIT)
+ *
+ * Copyright (c) 2014 Eugenio Marletti
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in
+ * all copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN
+ * THE SOFTWARE.
+ */
+
+package me.eugeniomarletti.tetheringfixer.stats;
+
+import me.eugeniomarletti.tetheringfixer.Async;
+import me.eugeniomarletti.tetheringfixer.netfilter.CounterCommand;
+import me.eugeniomarletti.tetheringfixer.watch.Scheduler;
+
+/**
+ * Periodically reads the counters of the fix rules, keeping the tethered throughput over time in a {@link CounterRing}.
+ * Traffic through the rules also proves that the fix is actually doing something.
+ * Meant to run for hours: after the first sample, its own bookkeeping doesn't allocate (the callback and the task are
+ * reused, the history is primitive).
+ * A read that doesn't report back within the read timeout (e.g. the shell died under it) counts as failed, and the
+ * next one is scheduled as usual.
+ */
+public final class TrafficSampler
+{
+    public interface Source
+    {
+        /**
+         * @param callback gets the command once finished, or {@code null} if there's nothing to count, which stops the
+         *                 sampler until it's started again; can be called on any thread
+         */
+        public void read(Async.Callback<CounterCommand> callback);
+    }
+
+    public static final long DEFAULT_INTERVAL     = 5000;
+    public static final int  DEFAULT_CAPACITY     = 720; // an hour
+    // longer than the timeout of the command itself
+    public static final long DEFAULT_READ_TIMEOUT = 30000;
+
+    private final Scheduler   scheduler;
+    private final Source      source;
+    private final long        interval;
+    private final long        readTimeout;
+    private final CounterRing ring;
+
+    private boolean running  = false;
+    private boolean reading  = false;
+    private int     matched  = -1; // how many rules were counted last time
+    private int     failures = 0;
+
+    private final Runnable tick = new Runnable()
+    {
+        @Override
+        public void run()
+        {
+            synchronized (TrafficSampler.this)
+            {
+                if (!running || reading) return;
+                reading = true;
+                scheduler.postDelayed(deadline, readTimeout);
+            }
+            source.read(callback);
+        }
+    };
+
+    private final Runnable deadline = new Runnable()
+    {
+        @Override
+        public void run()
+        {
+            synchronized (TrafficSampler.this)
+            {
+                if (!reading) return;
+                reading = false;
+                failures++;
+                if (running) scheduler.postDelayed(tick, interval);
+            }
+        }
+    };
+
+    private final Async.Callback<CounterCommand> callback = new Async.Callback<CounterCommand>()
+    {
+        @Override
+        public void callback(CounterCommand result, boolean success, Throwable error)
+        {
+            synchronized (TrafficSampler.this)
+            {
+                // a read given up on that reports back late is taken for the one after it, whose own result is
+                // then dropped: the counters are cumulative, so nothing is lost
+                if (!reading) return;
+                reading = false;
+                scheduler.removeCallbacks(deadline);
+                if (success && result == null) running = false;
+                else if (success) record(result);
+                else failures++;
+                if (running) scheduler.postDelayed(tick, interval);
+            }
+        }
+    };
+
+    public TrafficSampler(Scheduler scheduler, Source source, long interval, int capacity, long readTimeout)
+    {
+        this.scheduler = scheduler;
+        this.source = source;
+        this.interval = interval;
+        this.readTimeout = readTimeout;
+        ring = new CounterRing(capacity);
+    }
+
+    public TrafficSampler(Scheduler scheduler, Source source)
+    {
+        this(scheduler, source, DEFAULT_INTERVAL, DEFAULT_CAPACITY, DEFAULT_READ_TIMEOUT);
+    }
+
+    private void record(CounterCommand command)
+    {
+        final long time = scheduler.uptimeMillis();
+        // a different set of rules (e.g. the upstream changed) can't be compared with the previous sample
+        if (command.getMatched() != matched) ring.rebase(time, command.getPackets(), command.getBytes());
+        else ring.add(time, command.getPackets(), command.getBytes());
+        matched = command.getMatched();
+    }
+
+    /**
+     * Takes the first sample right away.
+     */
+    public synchronized void start()
+    {
+        if (running) return;
+        running = true;
+        scheduler.removeCallbacks(tick);
+        scheduler.postDelayed(tick, 0);
+    }
+
+    /**
+     * Keeps the history, which goes on from where it was on the next start.
+     */
+    public synchronized void stop()
+    {
+        running = false;
+        matched = -1;
+        scheduler.removeCallbacks(tick);
+    }
+
+    public synchronized boolean isRunning()
+    {
+        return running;
+    }
+
+    public synchronized int getFailures()
+    {
+        return failures;
+    }
+
+    /**
+     * @return whether there's been any traffic through the rules in the period covered by the history
+     */
+    public synchronized boolean isCarryingTraffic()
+    {
+        return ring.hasTraffic();
+    }
+
+    public synchronized long getLatestByteRate()
+    {
+        return ring.getLatestByteRate();
+    }
+
+    public synchronized long getAverageByteRate()
+    {
+        return ring.getAverageByteRate();
+    }
+
+    public synchronized long getPeakByteRate()
+    {
+        return ring.getPeakByteRate();
+    }
+
+    public synchronized long getTotalBytes()
+    {
+        return ring.getTotalBytes();
+    }
+
+    /**
+     * @see CounterRing#copyByteRates(long[])
+     */
+    public synchronized int copyByteRates(long[] rates)
+    {
+        return ring.copyByteRates(rates);
+    }
+
+    @Override
+    public synchronized String toString()
+    {
+        return String.format("TrafficSampler: %d samples, %d rules, %d failed; %d bytes total, " +
+                                     "rate latest %dB/s avg %dB/s peak %dB/s",
+                             ring.size(), matched, failures, ring.getTotalBytes(),
+                             ring.getLatestByteRate(), ring.getAverageByteRate(), ring.getPeakByteRate());
+    }
+}
@@ -0,0 +1,91 @@
+/*
+ * The MIT License (MIT)
+ *
+ * Copyright (c) 2014 Eugenio Marletti
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in
+ * all copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN
+ * THE SOFTWARE.
+ */
+
+package me.eugeniomarletti.tetheringfixer.tc;
+
+/**
+ * A queueing discipline as printed by {@code tc qdisc show}, e.g.
+ * {@code "qdisc pfifo_fast 0: root refcnt 2 bands 3 priomap 1 2 2 2 1 2 0 0 1 1 1 1 1 1 1 1"}.
+ */
+public final class Qdisc
+{
+    private static final String PREFIX = "qdisc ";
+    private static final String ROOT   = "root";
+    private static final String PARENT = "parent";
+    private static final String REFCNT = "refcnt";
+
+    public final String kind;
+    public final String handle;
+    public final String parent;  // null for the root
+    public final String options; // as printed, can be empty
+
+    public Qdisc(String kind, String handle, String parent, String options)
+    {
+        this.kind = kind;
+        this.handle = handle;
+        this.parent = parent;
+        this.options = options;
+    }
+
+    public boolean isRoot()
+    {
+        return parent == null;
+    }
+
+    /**
+     * @return {@code null} if the line doesn't describe a qdisc
+     */
+    public static Qdisc parse(String line)
+    {
+        line = line.trim();
+        if (!line.startsWith(PREFIX)) return null;
+        final String[] tokens = line.split("\\s+");
+        if (tokens.length < 4) return null;
+        final String kind = tokens[1];
+        final String handle = tokens[2];
+        int i = 3;
+        String parent = null;
+        if (PARENT.equals(tokens[i]) && i + 1 < tokens.length)
+        {
+            parent = tokens[i + 1];
+            i += 2;
+        }
+        else if (ROOT.equals(tokens[i])) i++;
+        else return null;
+        if (i + 1 < tokens.length && REFCNT.equals(tokens[i])) i += 2; // not an option, it can't be set
+        final StringBuilder options = new StringBuilder();
+        for (; i < tokens.length; i++)
+        {
+            if (options.length() > 0) options.append(' ');
+            options.append(tokens[i]);
+        }
+        return new Qdisc(kind, handle, parent, options.toString());
+    }
+
+    @Override
+    public String toString()
+    {
+        return String.format("%s %s %s %s", kind, handle, isRoot() ? ROOT : PARENT + " " + parent, options).trim();
+    }
+}
@@ -0,0 +1,123 @@
+/*
+ * The MIT License (MIT)
+ *
+ * Copyright (c) 2014 Eugenio Marletti
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in
+ * all copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN
+ * THE SOFTWARE.
+ */
+
+package me.eugeniomarletti.tetheringfixer.tc;
+
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.HashSet;
+import java.util.Set;
+
+/**
+ * Builds the {@code tc} commands that put a low latency qdisc on an interface, and those that put back whatever was
+ * there before. With a rate, the traffic is shaped just below the link speed so that the queue builds up here, where
+ * it's managed, instead of in the modem.
+ * Only the kernel's default qdisc is ever replaced, as it's the only one that can be faithfully put back.
+ */
+public final class TrafficControl
+{
+    // http://man7.org/linux/man-pages/man8/tc.8.html
+
+    public static final String BINARY = "tc";
+
+    public static final String KIND_CAKE     = "cake";
+    public static final String KIND_FQ_CODEL = "fq_codel";
+    public static final String KIND_HTB      = "htb";
+
+    public static final int RATE_NONE = 0;
+
+    // printed for qdiscs that were given no handle
+    private static final String HANDLE_UNSPECIFIED = "0:";
+
+    // what the kernel puts on an interface by itself, so deleting ours is enough to get it back
+    private static final Set<String> DEFAULT_KINDS =
+            Collections.unmodifiableSet(new HashSet<>(Arrays.asList("pfifo_fast", "noqueue", "mq", "pfifo")));
+
+    private TrafficControl() { }
+
+    public static String getShowCommand(String iface)
+    {
+        return String.format("%s qdisc show dev %s", BINARY, iface);
+    }
+
+    /**
+     * @param output of {@link #getShowCommand(String)}
+     * @return the root qdisc, {@code null} if there's none
+     */
+    public static Qdisc parseRoot(String output)
+    {
+        if (output == null) return null;
+        for (String line : output.split("\n"))
+        {
+            final Qdisc qdisc = Qdisc.parse(line);
+            if (qdisc != null && qdisc.isRoot()) return qdisc;
+        }
+        return null;
+    }
+
+    /**
+     * @param kind {@link #KIND_CAKE} or {@link #KIND_FQ_CODEL}
+     * @param rate kbit/s, or {@link #RATE_NONE} not to shape
+     */
+    public static String[] getApplyCommands(String iface, String kind, int rate)
+    {
+        if (KIND_CAKE.equals(kind))
+            return new String[]{String.format("%s qdisc replace dev %s root cake %s", BINARY, iface,
+                                              rate == RATE_NONE ? "unlimited" : "bandwidth " + rate + "kbit")};
+        if (rate == RATE_NONE)
+            return new String[]{String.format("%s qdisc replace dev %s root %s", BINARY, iface, kind)};
+        // fq_codel can't shape by itself: it goes under a single htb class
+        return new String[]{String.format("%s qdisc replace dev %s root handle 1: htb default 1", BINARY, iface),
+                            String.format("%s class replace dev %s parent 1: classid 1:1 htb rate %dkbit", BINARY,
+                                          iface, rate),
+                            String.format("%s qdisc replace dev %s parent 1:1 %s", BINARY, iface, kind)};
+    }
+
+    /**
+     * @return the kind the root qdisc has once {@link #getApplyCommands(String, String, int)} succeeded
+     */
+    public static String getRootKind(String kind, int rate)
+    {
+        return KIND_CAKE.equals(kind) || rate == RATE_NONE ? kind : KIND_HTB;
+    }
+
+    /**
+     * Only these can be put back, by deleting whatever replaced them: a qdisc set up by someone else may come with
+     * classes and filters of its own, which {@code tc qdisc show} doesn't print.
+     *
+     * @param root {@code null} if there's none
+     */
+    public static boolean isKernelDefault(Qdisc root)
+    {
+        return root == null || DEFAULT_KINDS.contains(root.kind) && HANDLE_UNSPECIFIED.equals(root.handle);
+    }
+
+    /**
+     * @return the command that takes our qdisc off, so that the kernel puts its default back
+     */
+    public static String getRestoreCommand(String iface)
+    {
+        return String.format("%s qdisc del dev %s root", BINARY, iface);
+    }
+}
@@ -0,0 +1,86 @@
+/*
+ * The MIT License (MIT)
+ *
+ * Copyright (c) 2014 Eugenio Marletti
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in
+ * all copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN
+ * THE SOFTWARE.
+ */
+
+package me.eugeniomarletti.tetheringfixer.watch;
+
+/**
+ * Count, average and extremes of a series of durations, in milliseconds.
+ * Not thread safe.
+ */
+public final class LatencyStats
+{
+    public final String name;
+
+    private int  count = 0;
+    private long total = 0;
+    private long min   = 0;
+    private long max   = 0;
+    private long last  = 0;
+
+    public LatencyStats(String name)
+    {
+        this.name = name;
+    }
+
+    public void record(long latency)
+    {
+        if (count == 0 || latency < min) min = latency;
+        if (count == 0 || latency > max) max = latency;
+        total += latency;
+        last = latency;
+        count++;
+    }
+
+    public int getCount()
+    {
+        return count;
+    }
+
+    public long getAverage()
+    {
+        return count == 0 ? 0 : total / count;
+    }
+
+    public long getMin()
+    {
+        return min;
+    }
+
+    public long getMax()
+    {
+        return max;
+    }
+
+    public long getLast()
+    {
+        return last;
+    }
+
+    @Override
+    public String toString()
+    {
+        return String.format("%s: %d, avg %dms min %dms max %dms last %dms",
+                             name, count, getAverage(), min, max, last);
+    }
+}
@@ -0,0 +1,269 @@
+/*
+ * The MIT License (MIT)
+ *
+ * Copyright (c) 2014 Eugenio Marletti
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in
+ * all copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN
+ * THE SOFTWARE.
+ */
+
+package me.eugeniomarletti.tetheringfixer.watch;
+
+import me.eugeniomarletti.tetheringfixer.Async;
+import me.eugeniomarletti.tetheringfixer.net.NetworkEvent;
+
+/**
+ * Decides when the fix has to be applied again after a change in the network, which netd handles by rewriting its
+ * chains (and dropping our rule).
+ * Events come in bursts (tethering toggled, upstream lost and found...), so they're debounced: the re-apply starts
+ * once no new event has arrived for the quiet period, but never later than the max delay after the first one.
+ * Events arriving while a re-apply is running start a new burst, handled as soon as it's done; a re-apply that doesn't
+ * report back within the run timeout counts as failed, so that a lost result doesn't keep it running forever.
+ * Nothing here touches the system: time goes through a {@link Scheduler}, and everything must be called on its thread.
+ */
+public final class ReapplyWatcher
+{
+    /**
+     * Checks the rules and fixes them only if needed.
+     */
+    public interface Reapplier
+    {
+        /**
+         * @param callback the result is whether the rules actually had to be fixed; can be called on any thread
+         */
+        public void reapply(Async.Callback<Boolean> callback);
+    }
+
+    public static final long DEFAULT_QUIET_PERIOD = 1500;
+    public static final long DEFAULT_MAX_DELAY    = 5000;
+    // long enough for the user to answer the superuser prompt
+    public static final long DEFAULT_RUN_TIMEOUT  = 120000;
+
+    // netlink events are precise and come before the broadcasts, no need to wait for more
+    public static final long NETWORK_EVENT_QUIET_PERIOD = 100;
+
+    private static final long NONE = -1;
+
+    private final Scheduler scheduler;
+    private final Reapplier reapplier;
+    private final long      quietPeriod;
+    private final long      maxDelay;
+    private final long      runTimeout;
+
+    private Boolean tethering  = null; // null until the first tether state event
+    private long    burstStart = NONE;
+    private boolean fast       = false; // whether the current burst had any network event
+    private boolean running    = false;
+    private int     runId      = 0; // bumped by every re-apply, so that the result of one given up on is ignored
+    private long    runStart;       // the start of the burst being handled
+
+    // stats
+    private       int          events    = 0;
+    private       int          ignored   = 0;
+    private       int          failures  = 0;
+    private final LatencyStats fixed     = new LatencyStats("fixed");
+    private final LatencyStats unchanged = new LatencyStats("already fixed");
+
+    private final Runnable fire = new Runnable()
+    {
+        @Override
+        public void run()
+        {
+            fire();
+        }
+    };
+
+    private final Runnable timeout = new Runnable()
+    {
+        @Override
+        public void run()
+        {
+            if (running) done(null);
+        }
+    };
+
+    public ReapplyWatcher(Scheduler scheduler, Reapplier reapplier, long quietPeriod, long maxDelay, long runTimeout)
+    {
+        if (quietPeriod < 0 || maxDelay < quietPeriod || runTimeout <= 0)
+            throw new IllegalArgumentException(
+                    String.format("Invalid delays: %d, %d, %d", quietPeriod, maxDelay, runTimeout));
+        this.scheduler = scheduler;
+        this.reapplier = reapplier;
+        this.quietPeriod = quietPeriod;
+        this.maxDelay = maxDelay;
+        this.runTimeout = runTimeout;
+    }
+
+    public ReapplyWatcher(Scheduler scheduler, Reapplier reapplier)
+    {
+        this(scheduler, reapplier, DEFAULT_QUIET_PERIOD, DEFAULT_MAX_DELAY, DEFAULT_RUN_TIMEOUT);
+    }
+
+    /**
+     * @param tethering whether any interface is tethered now
+     */
+    public void onTetherStateChanged(boolean tethering)
+    {
+        this.tethering = tethering;
+        if (tethering) onEvent();
+        else
+        {
+            // nothing to fix until it's turned on again, which will be an event of its own
+            events++;
+            ignored++;
+            burstStart = NONE;
+            fast = false;
+            scheduler.removeCallbacks(fire);
+        }
+    }
+
+    /**
+     * The upstream might have changed: only matters while tethering (or if we don't know yet).
+     */
+    public void onConnectivityChanged()
+    {
+        if (tethering == null || tethering) onEvent();
+        else
+        {
+            events++;
+            ignored++;
+        }
+    }
+
+    /**
+     * Reported by {@code ip monitor}: only matters if it has to do with the upstream, and then the whole burst is
+     * handled with a much shorter quiet period.
+     */
+    public void onNetworkEvent(NetworkEvent event)
+    {
+        if (event.affectsUpstream() && (tethering == null || tethering))
+        {
+            fast = true;
+            onEvent();
+        }
+        else
+        {
+            events++;
+            ignored++;
+        }
+    }
+
+    private void onEvent()
+    {
+        events++;
+        final long now = scheduler.uptimeMillis();
+        if (burstStart == NONE) burstStart = now;
+        if (!running) schedule(now);
+    }
+
+    private void schedule(long now)
+    {
+        final long at = Math.min(now + (fast ? NETWORK_EVENT_QUIET_PERIOD : quietPeriod), burstStart + maxDelay);
+        scheduler.removeCallbacks(fire);
+        scheduler.postDelayed(fire, Math.max(0, at - now));
+    }
+
+    private void fire()
+    {
+        if (burstStart == NONE || running) return;
+        runStart = burstStart;
+        burstStart = NONE;
+        fast = false;
+        running = true;
+        final int id = ++runId;
+        scheduler.postDelayed(timeout, runTimeout);
+        reapplier.reapply(new Async.Callback<Boolean>()
+        {
+            @Override
+            public void callback(final Boolean result, final boolean success, final Throwable error)
+            {
+                scheduler.postDelayed(new Runnable()
+                {
+                    @Override
+                    public void run()
+                    {
+                        if (running && id == runId)
+                            done(success && result != null ? result : null);
+                    }
+                }, 0);
+            }
+        });
+    }
+
+    /**
+     * @param fixed {@code null} if it failed or timed out
+     */
+    private void done(Boolean fixed)
+    {
+        running = false;
+        scheduler.removeCallbacks(timeout);
+        final long latency = scheduler.uptimeMillis() - runStart;
+        if (fixed == null) failures++;
+        else if (fixed) this.fixed.record(latency);
+        else unchanged.record(latency);
+        if (burstStart != NONE) schedule(scheduler.uptimeMillis()); // more events came in meanwhile
+    }
+
+    public boolean isPending()
+    {
+        return burstStart != NONE;
+    }
+
+    public boolean isRunning()
+    {
+        return running;
+    }
+
+    public int getEvents()
+    {
+        return events;
+    }
+
+    public int getIgnored()
+    {
+        return ignored;
+    }
+
+    public int getFailures()
+    {
+        return failures;
+    }
+
+    /**
+     * @return from the first event of a burst to the rules being fixed
+     */
+    public LatencyStats getFixedLatency()
+    {
+        return fixed;
+    }
+
+    /**
+     * @return from the first event of a burst to finding out there was nothing to fix
+     */
+    public LatencyStats getUnchangedLatency()
+    {
+        return unchanged;
+    }
+
+    @Override
+    public String toString()
+    {
+        return String.format("ReapplyWatcher: %d events, %d ignored, %d failed; %s; %s",
+                             events, ignored, failures, fixed, unchanged);
+    }
+}
@@ -0,0 +1,152 @@
+/*
+ * The MIT License (MIT)
+ *
+ * Copyright (c) 2014 Eugenio Marletti
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in
+ * all copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN
+ * THE SOFTWARE.
+ */
+
+package me.eugeniomarletti.tetheringfixer.benchmark;
+
+import me.eugeniomarletti.tetheringfixer.command.BatchCommand;
+import me.eugeniomarletti.tetheringfixer.command.CommandResult;
+import me.eugeniomarletti.tetheringfixer.command.ProcessShellBackend;
+import me.eugeniomarletti.tetheringfixer.command.WaitCommand;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+import org.openjdk.jmh.annotations.Warmup;
+
+import java.util.concurrent.TimeUnit;
+
+/**
+ * The path every root command goes through, from building it to getting its result back.
+ */
+@BenchmarkMode({Mode.Throughput, Mode.SampleTime})
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@Warmup(iterations = 5, time = 1)
+@Measurement(iterations = 10, time = 1)
+@Fork(1)
+public class CommandBenchmark
+{
+    private static final String CHECK_CMD  =
+            "iptables -t nat -C natctrl_nat_POSTROUTING -s 192.168.0.0/16 -o rmnet0 -j MASQUERADE";
+    private static final String APPEND_CMD =
+            "iptables -t nat -A natctrl_nat_POSTROUTING -s 192.168.0.0/16 -o rmnet0 -j MASQUERADE";
+    private static final String DELETE_CMD =
+            "iptables -t nat -D natctrl_nat_POSTROUTING -s 192.168.0.0/16 -o rmnet0 -j MASQUERADE";
+
+    // roughly what "iptables -L" prints for a small table
+    private static final String[] OUTPUT_LINES = new String[20];
+
+    static
+    {
+        for (int i = 0; i < OUTPUT_LINES.length; i++)
+            OUTPUT_LINES[i] = String.format("MASQUERADE  all  --  192.168.%d.0/24  0.0.0.0/0", i);
+    }
+
+    @State(Scope.Benchmark)
+    public static class Shell
+    {
+        public FakeRoot            fakeRoot;
+        public ProcessShellBackend backend;
+
+        @Setup(Level.Trial)
+        public void setUp() throws Exception
+        {
+            fakeRoot = FakeRoot.create();
+            backend = new ProcessShellBackend("/bin/sh", fakeRoot.binDirectory);
+            backend.start();
+        }
+
+        @TearDown(Level.Trial)
+        public void tearDown() throws Exception
+        {
+            backend.close();
+            fakeRoot.delete();
+        }
+    }
+
+    @Benchmark
+    public WaitCommand waitCommandConstruction()
+    {
+        return new WaitCommand(CHECK_CMD);
+    }
+
+    @Benchmark
+    public CommandResult outputAccumulation()
+    {
+        final WaitCommand cmd = new WaitCommand(CHECK_CMD);
+        for (String line : OUTPUT_LINES) cmd.commandOutput(cmd.id, line);
+        cmd.commandCompleted(cmd.id, 0);
+        return cmd.getResult();
+    }
+
+    @Benchmark
+    public CommandResult commandResultCreation()
+    {
+        return new CommandResult(0, 0, false, null, OUTPUT_LINES[0]);
+    }
+
+    /**
+     * Same as what {@code Fixer.runCommand()} does: one command, one round-trip to the shell.
+     */
+    @Benchmark
+    public CommandResult runCommandRoundTrip(Shell shell) throws Exception
+    {
+        final WaitCommand cmd = new WaitCommand(CHECK_CMD);
+        shell.backend.add(cmd);
+        return cmd.waitForFinish();
+    }
+
+    /**
+     * Check, delete and append as three sequential round-trips, the way the fix used to be applied.
+     */
+    @Benchmark
+    public CommandResult threeRoundTrips(Shell shell) throws Exception
+    {
+        CommandResult result = null;
+        for (String command : new String[]{CHECK_CMD, DELETE_CMD, APPEND_CMD})
+        {
+            final WaitCommand cmd = new WaitCommand(command);
+            shell.backend.add(cmd);
+            result = cmd.waitForFinish();
+        }
+        return result;
+    }
+
+    /**
+     * The same three commands as {@link #threeRoundTrips(Shell)}, batched into one.
+     */
+    @Benchmark
+    public CommandResult[] batchRoundTrip(Shell shell) throws Exception
+    {
+        final BatchCommand cmd = new BatchCommand(CHECK_CMD, DELETE_CMD, APPEND_CMD);
+        shell.backend.add(cmd);
+        return cmd.waitForResults();
+    }
+}
@@ -0,0 +1,124 @@
+/*
+ * The MIT License (MIT)
+ *
+ * Copyright (c) 2014 Eugenio Marletti
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in
+ * all copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN
+ * THE SOFTWARE.
+ */
+
+package me.eugeniomarletti.tetheringfixer.benchmark;
+
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.InputStreamReader;
+import java.io.OutputStreamWriter;
+import java.io.Reader;
+import java.io.Writer;
+
+/**
+ * A temporary directory of shell scripts standing in for the root binaries, to be put first in {@code PATH}.
+ * They answer like the real ones would on a device where the fix isn't applied yet, without touching anything.
+ * {@code nft} also appends every batch it's given to {@link #NFT_INPUT}.
+ */
+public final class FakeRoot
+{
+    public static final String NFT_INPUT = "nft.input";
+
+    // the batch on stdin is recorded, the listing of any table says it doesn't exist
+    public static final String NFT_SCRIPT =
+            "d=$(dirname \"$0\")\n" +
+            "[ \"$1\" = \"-f\" ] && { cat >> \"$d/" + NFT_INPUT + "\"; exit 0; }\n" +
+            "[ \"$2\" = \"list\" ] && { echo 'Error: No such file or directory';" +
+            " echo \"list table $4 $5\"; exit 1; }\n" +
+            "exit 0\n";
+
+    public final File binDirectory;
+
+    private FakeRoot(File binDirectory)
+    {
+        this.binDirectory = binDirectory;
+    }
+
+    public static FakeRoot create() throws IOException
+    {
+        final File directory = File.createTempFile("fake-root", "");
+        if (!directory.delete() || !directory.mkdir()) throw new IOException("Can't create " + directory);
+        final FakeRoot fakeRoot = new FakeRoot(directory);
+        // -C: rule not found, anything else: ok
+        fakeRoot.write("iptables", "for a in \"$@\"; do [ \"$a\" = \"-C\" ] && exit 1; done\nexit 0\n");
+        fakeRoot.write("iptables-restore", "cat > /dev/null\n");
+        fakeRoot.write("iptables-save", "echo '*nat'\n" +
+                                        "echo ':POSTROUTING ACCEPT [0:0]'\n" +
+                                        "echo ':natctrl_nat_POSTROUTING - [0:0]'\n" +
+                                        "echo '[0:0] -A POSTROUTING -j natctrl_nat_POSTROUTING'\n" +
+                                        "echo 'COMMIT'\n");
+        fakeRoot.write("nft", NFT_SCRIPT);
+        return fakeRoot;
+    }
+
+    public File write(String name, String script) throws IOException
+    {
+        final File file = new File(binDirectory, name);
+        final Writer writer = new OutputStreamWriter(new FileOutputStream(file), "UTF-8");
+        try
+        {
+            writer.write("#!/bin/sh\n");
+            writer.write(script);
+        }
+        finally
+        {
+            writer.close();
+        }
+        if (!file.setExecutable(true)) throw new IOException("Can't make executable " + file);
+        return file;
+    }
+
+    /**
+     * @return what a stub wrote to the file in the bin directory, {@code null} if it wrote nothing
+     */
+    public String read(String name) throws IOException
+    {
+        final File file = new File(binDirectory, name);
+        if (!file.exists()) return null;
+        final Reader reader = new InputStreamReader(new FileInputStream(file), "UTF-8");
+        try
+        {
+            final StringBuilder content = new StringBuilder();
+            final char[] buffer = new char[4096];
+            int read;
+            while ((read = reader.read(buffer)) > 0) content.append(buffer, 0, read);
+            return content.toString();
+        }
+        finally
+        {
+            reader.close();
+        }
+    }
+
+    public void delete()
+    {
+        final File[] files = binDirectory.listFiles();
+        if (files != null) for (File file : files) //noinspection ResultOfMethodCallIgnored
+            file.delete();
+        //noinspection ResultOfMethodCallIgnored
+        binDirectory.delete();
+    }
+}
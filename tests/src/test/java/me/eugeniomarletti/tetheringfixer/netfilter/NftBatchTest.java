@@ -0,0 +1,199 @@
+/*
+ * The MIT License (MIT)
+ *
+ * Copyright (c) 2014 Eugenio Marletti
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in
+ * all copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN
+ * THE SOFTWARE.
+ */
+
+package me.eugeniomarletti.tetheringfixer.netfilter;
+
+import me.eugeniomarletti.tetheringfixer.benchmark.FakeRoot;
+import me.eugeniomarletti.tetheringfixer.command.CommandNotOkException;
+import me.eugeniomarletti.tetheringfixer.command.CommandRunner;
+import me.eugeniomarletti.tetheringfixer.command.ProcessShellBackend;
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+import java.util.Arrays;
+import java.util.Collections;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertNotNull;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertTrue;
+import static org.junit.Assert.fail;
+
+public class NftBatchTest
+{
+    private static final String TABLE = "tetherfix";
+
+    private static final NftChain POSTROUTING =
+            new NftChain("postrouting", NftChain.TYPE_NAT, NftChain.HOOK_POSTROUTING, NftChain.PRIORITY_SRCNAT);
+
+    // records the batch like the default stub, but rejects it whole if it touches IPv6
+    private static final String NFT_NO_IPV6_SCRIPT =
+            "d=$(dirname \"$0\")\n" +
+            "[ \"$1\" = \"-f\" ] || exit 0\n" +
+            "cat > \"$d/nft.batch\"\n" +
+            "cat \"$d/nft.batch\" >> \"$d/" + FakeRoot.NFT_INPUT + "\"\n" +
+            "grep -q ' ip6 ' \"$d/nft.batch\" && { echo 'Error: Could not process rule' >&2; exit 1; }\n" +
+            "exit 0\n";
+
+    private FakeRoot            fakeRoot;
+    private ProcessShellBackend backend;
+    private CommandRunner       runner;
+
+    private static final class TestPart implements NftBatch.Part
+    {
+        private final String  family;
+        private final boolean required;
+        private final String  upstream;
+
+        private CommandNotOkException givenUp;
+        private int                   givenUpCount = 0;
+
+        private TestPart(String family, boolean required, String upstream)
+        {
+            this.family = family;
+            this.required = required;
+            this.upstream = upstream;
+        }
+
+        @Override
+        public boolean isRequired()
+        {
+            return required;
+        }
+
+        @Override
+        public void addTo(NftTransaction transaction)
+        {
+            if (upstream == null) return;
+            transaction.newChain(family, POSTROUTING);
+            transaction.add(family, POSTROUTING.name, String.format("oifname \"%s\" masquerade", upstream),
+                            String.format("-o %s -j MASQUERADE", upstream));
+        }
+
+        @Override
+        public void giveUp(CommandNotOkException error)
+        {
+            givenUp = error;
+            givenUpCount++;
+        }
+    }
+
+    @Before
+    public void setUp() throws Exception
+    {
+        fakeRoot = FakeRoot.create();
+        backend = new ProcessShellBackend("/bin/sh", fakeRoot.binDirectory);
+        backend.start();
+        runner = new CommandRunner(backend);
+    }
+
+    @After
+    public void tearDown() throws Exception
+    {
+        backend.close();
+        fakeRoot.delete();
+    }
+
+    @Test
+    public void payloadDeclaresTablesAndChainsOnceBeforeTheRules()
+    {
+        final NftTransaction transaction = new NftTransaction(TABLE)
+                .newChain("ip", POSTROUTING)
+                .add("ip", POSTROUTING.name, "oifname \"rmnet0\" masquerade", "-o rmnet0 -j MASQUERADE")
+                .newChain("ip", POSTROUTING)
+                .delete("ip", POSTROUTING.name, 7);
+        assertEquals("add table ip tetherfix\n" +
+                     "add chain ip tetherfix postrouting " + POSTROUTING.getDeclaration() + "\n" +
+                     "add rule ip tetherfix postrouting oifname \"rmnet0\" masquerade" +
+                     " comment \"-o rmnet0 -j MASQUERADE\"\n" +
+                     "delete rule ip tetherfix postrouting handle 7\n",
+                     transaction.getPayload());
+    }
+
+    @Test(expected = IllegalArgumentException.class)
+    public void commentWithQuotesIsRejected()
+    {
+        new NftTransaction(TABLE).add("ip", POSTROUTING.name, "masquerade", "\"quoted\"");
+    }
+
+    @Test
+    public void wholeBatchGoesToNftAtOnce() throws Exception
+    {
+        final TestPart ipv4 = new TestPart("ip", true, "rmnet0");
+        final TestPart ipv6 = new TestPart("ip6", false, "rmnet0");
+        final NftTransaction committed = NftBatch.commit(runner, TABLE, Arrays.asList(ipv4, ipv6));
+        assertNotNull(committed);
+        // the heredoc reaches nft's stdin untouched
+        assertEquals(committed.getPayload(), fakeRoot.read(FakeRoot.NFT_INPUT));
+        assertTrue(committed.getPayload().contains("add table ip6 tetherfix\n"));
+        assertEquals(0, ipv4.givenUpCount + ipv6.givenUpCount);
+    }
+
+    @Test
+    public void nothingToDoDoesntRunNft() throws Exception
+    {
+        final TestPart part = new TestPart("ip", true, null);
+        assertNull(NftBatch.commit(runner, TABLE, Collections.singletonList(part)));
+        assertNull(fakeRoot.read(FakeRoot.NFT_INPUT));
+    }
+
+    @Test
+    public void rejectedBatchIsRetriedWithoutTheOptionalParts() throws Exception
+    {
+        fakeRoot.write("nft", NFT_NO_IPV6_SCRIPT);
+        final TestPart ipv4 = new TestPart("ip", true, "rmnet0");
+        final TestPart ipv6 = new TestPart("ip6", false, "rmnet0");
+        final NftTransaction committed = NftBatch.commit(runner, TABLE, Arrays.asList(ipv4, ipv6));
+
+        assertNotNull(committed);
+        assertFalse(committed.getPayload().contains(" ip6 "));
+        assertEquals(0, ipv4.givenUpCount);
+        assertEquals(1, ipv6.givenUpCount);
+        assertEquals(1, ipv6.givenUp.result.exitcode);
+
+        final NftTransaction whole = new NftTransaction(TABLE);
+        ipv4.addTo(whole);
+        ipv6.addTo(whole);
+        assertEquals(whole.getPayload() + committed.getPayload(), fakeRoot.read(FakeRoot.NFT_INPUT));
+    }
+
+    @Test
+    public void rejectedBatchWithOnlyRequiredPartsFails() throws Exception
+    {
+        fakeRoot.write("nft", NFT_NO_IPV6_SCRIPT);
+        final TestPart ipv6 = new TestPart("ip6", true, "rmnet0");
+        try
+        {
+            NftBatch.commit(runner, TABLE, Collections.singletonList(ipv6));
+            fail("The batch can't go through.");
+        }
+        catch (CommandNotOkException e)
+        {
+            assertEquals(1, e.result.exitcode);
+        }
+        assertEquals(0, ipv6.givenUpCount);
+    }
+}
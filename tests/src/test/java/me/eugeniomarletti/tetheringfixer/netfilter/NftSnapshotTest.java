@@ -0,0 +1,104 @@
+/*
+ * The MIT License (MIT)
+ *
+ * Copyright (c) 2014 Eugenio Marletti
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in
+ * all copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN
+ * THE SOFTWARE.
+ */
+
+package me.eugeniomarletti.tetheringfixer.netfilter;
+
+import me.eugeniomarletti.tetheringfixer.benchmark.FakeRoot;
+import me.eugeniomarletti.tetheringfixer.command.BatchCommand;
+import me.eugeniomarletti.tetheringfixer.command.CommandResult;
+import me.eugeniomarletti.tetheringfixer.command.CommandRunner;
+import me.eugeniomarletti.tetheringfixer.command.ProcessShellBackend;
+import org.junit.Test;
+
+import java.util.Arrays;
+import java.util.Collections;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertNotEquals;
+import static org.junit.Assert.assertTrue;
+
+public class NftSnapshotTest
+{
+    private static final String TABLE = "tetherfix";
+
+    // trimmed down "nft -j list table ip tetherfix": a copy of the masquerade rule, and a rule that isn't ours
+    private static final String LISTING =
+            "{\"nftables\": [" +
+            "{\"metainfo\": {\"version\": \"1.0.2\", \"json_schema_version\": 1}}," +
+            "{\"table\": {\"family\": \"ip\", \"name\": \"tetherfix\", \"handle\": 1}}," +
+            "{\"chain\": {\"family\": \"ip\", \"table\": \"tetherfix\", \"name\": \"postrouting\", \"handle\": 1," +
+            " \"type\": \"nat\", \"hook\": \"postrouting\", \"prio\": 100, \"policy\": \"accept\"}}," +
+            "{\"rule\": {\"family\": \"ip\", \"table\": \"tetherfix\", \"chain\": \"postrouting\", \"handle\": 4," +
+            " \"comment\": \"-o rmnet0 -j MASQUERADE\", \"expr\": [{\"masquerade\": null}]}}," +
+            "{\"rule\": {\"family\": \"ip\", \"table\": \"tetherfix\", \"chain\": \"postrouting\", \"handle\": 9," +
+            " \"comment\": \"-o rmnet0 -j MASQUERADE\", \"expr\": [{\"masquerade\": null}]}}," +
+            "{\"rule\": {\"family\": \"ip\", \"table\": \"tetherfix\", \"chain\": \"postrouting\", \"handle\": 12," +
+            " \"expr\": [{\"accept\": null}]}}" +
+            "]}";
+
+    @Test
+    public void missingTableIsEmpty() throws Exception
+    {
+        final FakeRoot fakeRoot = FakeRoot.create();
+        final ProcessShellBackend backend = new ProcessShellBackend("/bin/sh", fakeRoot.binDirectory);
+        try
+        {
+            backend.start();
+            final CommandResult result = new CommandRunner(backend).runAll(
+                    new BatchCommand(NftSnapshot.getListCommand("ip", TABLE)))[0];
+            assertNotEquals(0, result.exitcode);
+            assertTrue(NftSnapshot.isNoSuchTable(result.output));
+
+            final NftSnapshot snapshot = NftSnapshot.empty("ip", TABLE);
+            assertEquals(0, snapshot.size());
+            assertFalse(snapshot.hasChain("postrouting"));
+            assertEquals(Collections.<Long>emptyList(), snapshot.getHandles("postrouting", "-o rmnet0 -j MASQUERADE"));
+        }
+        finally
+        {
+            backend.close();
+            fakeRoot.delete();
+        }
+    }
+
+    @Test
+    public void otherErrorsAreNotAMissingTable()
+    {
+        assertFalse(NftSnapshot.isNoSuchTable("Error: Operation not permitted"));
+        assertFalse(NftSnapshot.isNoSuchTable(null));
+    }
+
+    @Test
+    public void rulesAreFoundByTheirComment() throws Exception
+    {
+        final NftSnapshot snapshot = NftSnapshot.parse("ip", TABLE, LISTING);
+        assertEquals(3, snapshot.size());
+        assertTrue(snapshot.hasChain("postrouting"));
+        assertFalse(snapshot.hasChain("forward"));
+        assertTrue(snapshot.contains("postrouting", "-o rmnet0 -j MASQUERADE"));
+        assertEquals(Arrays.asList(4L, 9L), snapshot.getHandles("postrouting", "-o rmnet0 -j MASQUERADE"));
+        assertFalse(snapshot.contains("postrouting", "-o rmnet1 -j MASQUERADE"));
+    }
+}
@@ -0,0 +1,193 @@
+/*
+ * The MIT License (MIT)
+ *
+ * Copyright (c) 2014 Eugenio Marletti
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in
+ * all copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN
+ * THE SOFTWARE.
+ */
+
+package me.eugeniomarletti.tetheringfixer.watch;
+
+import me.eugeniomarletti.tetheringfixer.Async;
+import me.eugeniomarletti.tetheringfixer.net.NetworkEvent;
+import org.junit.Before;
+import org.junit.Test;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+
+public class ReapplyWatcherTest
+{
+    private static final long QUIET = ReapplyWatcher.DEFAULT_QUIET_PERIOD;
+    private static final long MAX   = ReapplyWatcher.DEFAULT_MAX_DELAY;
+
+    private VirtualScheduler scheduler;
+    private ReapplyWatcher   watcher;
+
+    // when each re-apply started, and the callbacks of those still running
+    private final List<Long>                    starts  = new ArrayList<>();
+    private final List<Async.Callback<Boolean>> running = new ArrayList<>();
+    private       boolean                       instant = true;
+
+    @Before
+    public void setUp()
+    {
+        scheduler = new VirtualScheduler();
+        watcher = new ReapplyWatcher(scheduler, new ReapplyWatcher.Reapplier()
+        {
+            @Override
+            public void reapply(Async.Callback<Boolean> callback)
+            {
+                starts.add(scheduler.uptimeMillis());
+                if (instant) callback.callback(true, true, null);
+                else running.add(callback);
+            }
+        });
+    }
+
+    @Test
+    public void burstIsCoalescedIntoOneReapply()
+    {
+        watcher.onConnectivityChanged();
+        scheduler.advance(500);
+        watcher.onConnectivityChanged();
+        scheduler.advance(500);
+        watcher.onConnectivityChanged();
+        scheduler.advance(QUIET - 1);
+        assertTrue(starts.isEmpty());
+        assertTrue(watcher.isPending());
+
+        scheduler.advance(1);
+        assertEquals(Arrays.asList(1000 + QUIET), starts);
+        assertFalse(watcher.isPending());
+        assertEquals(1, watcher.getFixedLatency().getCount());
+        assertEquals(1000 + QUIET, watcher.getFixedLatency().getLast());
+
+        scheduler.advance(10 * MAX);
+        assertEquals(1, starts.size());
+    }
+
+    @Test
+    public void continuousBurstIsCappedByTheMaxDelay()
+    {
+        for (long elapsed = 0; elapsed < 2 * MAX; elapsed += QUIET / 2)
+        {
+            watcher.onConnectivityChanged();
+            scheduler.advance(QUIET / 2);
+        }
+        // the first re-apply can't wait for the burst to be over
+        assertEquals(MAX, (long)starts.get(0));
+        assertEquals(MAX, watcher.getFixedLatency().getMax());
+    }
+
+    @Test
+    public void upstreamNetworkEventUsesTheShortQuietPeriod()
+    {
+        watcher.onNetworkEvent(new NetworkEvent(NetworkEvent.TYPE_ROUTE, false, "rmnet0", false, true, 0));
+        scheduler.advance(ReapplyWatcher.NETWORK_EVENT_QUIET_PERIOD);
+        assertEquals(Arrays.asList(ReapplyWatcher.NETWORK_EVENT_QUIET_PERIOD), starts);
+    }
+
+    @Test
+    public void unrelatedNetworkEventIsIgnored()
+    {
+        watcher.onNetworkEvent(new NetworkEvent(NetworkEvent.TYPE_LINK, false, "wlan0", true, false, 0));
+        scheduler.advance(10 * MAX);
+        assertTrue(starts.isEmpty());
+        assertEquals(1, watcher.getIgnored());
+    }
+
+    @Test
+    public void tetheringStoppedCancelsThePendingReapply()
+    {
+        watcher.onTetherStateChanged(true);
+        watcher.onConnectivityChanged();
+        scheduler.advance(QUIET / 2);
+        watcher.onTetherStateChanged(false);
+        assertFalse(watcher.isPending());
+        assertEquals(0, scheduler.getPending());
+
+        // nothing to fix without tethering
+        watcher.onConnectivityChanged();
+        scheduler.advance(10 * MAX);
+        assertTrue(starts.isEmpty());
+        assertEquals(2, watcher.getIgnored());
+    }
+
+    @Test
+    public void eventsWhileRunningAreHandledOnceDone()
+    {
+        instant = false;
+        watcher.onConnectivityChanged();
+        scheduler.advance(QUIET);
+        assertEquals(1, starts.size());
+        assertTrue(watcher.isRunning());
+
+        watcher.onConnectivityChanged();
+        scheduler.advance(10 * MAX);
+        assertEquals(1, starts.size()); // never two at once
+
+        // the burst has already waited longer than the max delay, so the next one starts right away
+        final long done = scheduler.uptimeMillis();
+        running.remove(0).callback(false, true, null);
+        scheduler.advance(0);
+        assertEquals(1, watcher.getUnchangedLatency().getCount());
+        assertEquals(Arrays.asList(QUIET, done), starts);
+        assertTrue(watcher.isRunning());
+    }
+
+    @Test
+    public void failureIsCounted()
+    {
+        instant = false;
+        watcher.onConnectivityChanged();
+        scheduler.advance(QUIET);
+        running.remove(0).callback(null, false, new RuntimeException());
+        scheduler.advance(0);
+        assertEquals(1, watcher.getFailures());
+        assertFalse(watcher.isRunning());
+    }
+
+    @Test
+    public void lostResultTimesOut()
+    {
+        instant = false;
+        watcher.onConnectivityChanged();
+        scheduler.advance(QUIET);
+        watcher.onConnectivityChanged();
+        scheduler.advance(ReapplyWatcher.DEFAULT_RUN_TIMEOUT - 1);
+        assertTrue(watcher.isRunning());
+
+        // given up on, the burst that came in meanwhile goes right away
+        scheduler.advance(1);
+        assertEquals(1, watcher.getFailures());
+        assertEquals(2, starts.size());
+
+        // the late result of the first one doesn't end the second
+        running.remove(0).callback(true, true, null);
+        scheduler.advance(0);
+        assertTrue(watcher.isRunning());
+        assertEquals(0, watcher.getFixedLatency().getCount());
+    }
+}
@@ -0,0 +1,93 @@
+/*
+ * The MIT License (MIT)
+ *
+ * Copyright (c) 2014 Eugenio Marletti
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in
+ * all copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN
+ * THE SOFTWARE.
+ */
+
+package me.eugeniomarletti.tetheringfixer.watch;
+
+import java.util.ArrayList;
+import java.util.Iterator;
+import java.util.List;
+
+/**
+ * A clock that only moves when told to, running the tasks that come due along the way in order.
+ */
+final class VirtualScheduler implements Scheduler
+{
+    private static final class Task
+    {
+        public final Runnable runnable;
+        public final long     at;
+
+        private Task(Runnable runnable, long at)
+        {
+            this.runnable = runnable;
+            this.at = at;
+        }
+    }
+
+    private final List<Task> tasks = new ArrayList<>();
+    private       long       now   = 0;
+
+    @Override
+    public long uptimeMillis()
+    {
+        return now;
+    }
+
+    @Override
+    public void postDelayed(Runnable task, long delay)
+    {
+        tasks.add(new Task(task, now + delay));
+    }
+
+    @Override
+    public void removeCallbacks(Runnable task)
+    {
+        for (Iterator<Task> i = tasks.iterator(); i.hasNext(); )
+            if (i.next().runnable == task) i.remove();
+    }
+
+    /**
+     * Runs every task due within the time, including those they post, each with the clock at its own time.
+     */
+    public void advance(long millis)
+    {
+        final long until = now + millis;
+        while (true)
+        {
+            Task next = null;
+            for (Task task : tasks)
+                if (task.at <= until && (next == null || task.at < next.at)) next = task; // first posted first
+            if (next == null) break;
+            tasks.remove(next);
+            now = next.at;
+            next.runnable.run();
+        }
+        now = until;
+    }
+
+    public int getPending()
+    {
+        return tasks.size();
+    }
+}